@@ -1110,6 +1110,36 @@ public class FFmpegMediaPlayer
      */
     public native void seekTo(int msec) throws IllegalStateException;
 
+    /**
+     * Seek mode: seeks to the key frame at or before the given time. This is
+     * what {@link #seekTo(int)} does.
+     */
+    public static final int SEEK_PREVIOUS_SYNC = 0;
+    /**
+     * Seek mode: seeks to the frame at the given time. Frames between the
+     * key frame before it and the target are decoded but not shown, so this
+     * takes longer the further apart key frames are.
+     */
+    public static final int SEEK_CLOSEST = 3;
+
+    /**
+     * Seeks to specified time position.
+     *
+     * @param msec the offset in milliseconds from the start to seek to
+     * @param mode {@link #SEEK_PREVIOUS_SYNC} or {@link #SEEK_CLOSEST}
+     * @throws IllegalStateException if the internal player engine has not been
+     * initialized
+     * @throws IllegalArgumentException if mode is not a seek mode
+     */
+    public void seekTo(int msec, int mode) throws IllegalStateException {
+        if (mode != SEEK_PREVIOUS_SYNC && mode != SEEK_CLOSEST) {
+            throw new IllegalArgumentException("Illegal seek mode: " + mode);
+        }
+        _seekTo(msec, mode);
+    }
+
+    private native void _seekTo(int msec, int mode) throws IllegalStateException;
+
     /**
      * Gets the current playback position.
      *
@@ -1370,9 +1400,328 @@ public class FFmpegMediaPlayer
      */
     private static final int KEY_PARAMETER_TIMED_TEXT_ADD_OUT_OF_BAND_SOURCE = 1001;
 
-    // There are currently no defined keys usable from Java with get*Parameter.
-    // But if any keys are defined, the order must be kept in sync with include/media/mediaplayer.h.
-    // private static final int KEY_PARAMETER_... = ...;
+    /* Do not change these values (starting with KEY_PARAMETER) without updating
+     * their counterparts in ffmpeg_mediaplayer.h!
+     */
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Duration of media, in milliseconds, that each stream must have buffered
+     * before playback starts. Reading resumes once a stream drops below it.
+     */
+    public static final int KEY_PARAMETER_MIN_BUFFER_MS = 2000;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Duration of media, in milliseconds, after which the player stops reading
+     * ahead. The limit is in time, so the memory used follows the bitrate
+     * of the content.
+     */
+    public static final int KEY_PARAMETER_MAX_BUFFER_MS = 2001;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Number of audio frames in each buffer handed to the audio output. Smaller
+     * buffers lower the output latency, larger ones tolerate a late callback
+     * better. Applies to the next data source that is prepared.
+     */
+    public static final int KEY_PARAMETER_AUDIO_FRAMES_PER_BUFFER = 2002;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Number of decoded pictures, from 1 to 16, that may wait for display so
+     * decoding can run ahead of it. Applies to the next data source that is
+     * prepared.
+     */
+    public static final int KEY_PARAMETER_VIDEO_PICTURE_QUEUE_SIZE = 2003;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * How decoded video reaches the surface, {@link #VIDEO_RENDER_MODE_COPY}
+     * or {@link #VIDEO_RENDER_MODE_DIRECT}. Applies to the next data source
+     * that is prepared.
+     */
+    public static final int KEY_PARAMETER_VIDEO_RENDER_MODE = 2004;
+    /**
+     * Video render mode: pictures are converted to RGBA when decoded and
+     * copied into the surface when shown. This is the default.
+     */
+    public static final int VIDEO_RENDER_MODE_COPY = 0;
+    /**
+     * Video render mode: decoded frames are converted straight into the
+     * surface's buffer when shown, saving a full frame copy and buffer.
+     */
+    public static final int VIDEO_RENDER_MODE_DIRECT = 1;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Number of threads the video decoder may use, up to 16. 0, the default,
+     * uses one per CPU core. Applies to the next data source that is
+     * prepared.
+     */
+    public static final int KEY_PARAMETER_DECODER_THREAD_COUNT = 2005;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * How the video decoder splits work between its threads, one of
+     * {@link #DECODER_THREAD_TYPE_AUTO}, {@link #DECODER_THREAD_TYPE_FRAME}
+     * or {@link #DECODER_THREAD_TYPE_SLICE}. Applies to the next data source
+     * that is prepared.
+     */
+    public static final int KEY_PARAMETER_DECODER_THREAD_TYPE = 2006;
+    /**
+     * Decoder thread type: frame or slice threading, whichever the codec
+     * supports. This is the default.
+     */
+    public static final int DECODER_THREAD_TYPE_AUTO = 0;
+    /**
+     * Decoder thread type: several frames are decoded at once. Scales best
+     * but adds a frame of latency per thread.
+     */
+    public static final int DECODER_THREAD_TYPE_FRAME = 1;
+    /**
+     * Decoder thread type: the slices of one frame are decoded at once. No
+     * added latency, but only helps content encoded with several slices.
+     */
+    public static final int DECODER_THREAD_TYPE_SLICE = 2;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Longest time, in milliseconds, {@link #prepare()} waits for the data
+     * source before it fails with an IOException. 0, the default, waits
+     * until the source is prepared or fails.
+     */
+    public static final int KEY_PARAMETER_PREPARE_TIMEOUT_MS = 2007;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * 1 bounds the probing of the data source so MEDIA_PREPARED is sent
+     * sooner, 0 (the default) probes in full. Probing limits that are not
+     * set explicitly get small defaults. If the bounded probe misses stream
+     * information, the source is probed in full after all. Applies to the
+     * next data source that is prepared.
+     */
+    public static final int KEY_PARAMETER_FAST_START = 2008;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Most bytes read while probing the data source, at least 32. 0, the
+     * default, uses FFmpeg's limit.
+     */
+    public static final int KEY_PARAMETER_PROBE_SIZE = 2009;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Most media, in milliseconds, analyzed while probing the data source.
+     * 0, the default, uses FFmpeg's limit.
+     */
+    public static final int KEY_PARAMETER_ANALYZE_DURATION_MS = 2010;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Number of frames used to find the video frame rate while probing. 0,
+     * the default, uses FFmpeg's limit.
+     */
+    public static final int KEY_PARAMETER_FPS_PROBE_SIZE = 2011;
+    /**
+     * Key used in setParameter and getStringParameter methods.
+     * FFmpeg name of the container format, such as "mp4" or "mp3", used
+     * instead of probing for it. null or an empty string, the default,
+     * probes the format. Unknown names are rejected.
+     */
+    public static final int KEY_PARAMETER_FORMAT_HINT = 2012;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * When the data source counts as prepared, one of
+     * {@link #PREPARE_POLICY_BUFFERED} or {@link #PREPARE_POLICY_FIRST_FRAME}.
+     * Applies to the next data source that is prepared.
+     */
+    public static final int KEY_PARAMETER_PREPARE_POLICY = 2013;
+    /**
+     * Prepare policy: prepared once every stream has
+     * {@link #KEY_PARAMETER_PREPARE_BUFFER_MS} of media decoded or buffered.
+     * This is the default.
+     */
+    public static final int PREPARE_POLICY_BUFFERED = 0;
+    /**
+     * Prepare policy: like {@link #PREPARE_POLICY_BUFFERED} for audio, while
+     * video is ready as soon as its first frame can be shown.
+     */
+    public static final int PREPARE_POLICY_FIRST_FRAME = 1;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Media, in milliseconds, each stream needs before the data source is
+     * prepared. The default is 500. Applies to the next data source that is
+     * prepared.
+     */
+    public static final int KEY_PARAMETER_PREPARE_BUFFER_MS = 2014;
+    /**
+     * Key used in setParameter and getStringParameter methods.
+     * Writable directory, such as {@link android.content.Context#getCacheDir()},
+     * where seek indexes are kept. Sources whose container has no index of
+     * its own, such as MP3, AAC and MPEG-TS, are indexed while they play, and
+     * later seeks go straight to the recorded positions. With a directory
+     * the index outlives the player and is used the next time the same
+     * source is opened. null or an empty string, the default, keeps indexes
+     * in memory only.
+     */
+    public static final int KEY_PARAMETER_SEEK_INDEX_DIR = 2015;
+    /**
+     * Key used in setParameter and getStringParameter methods.
+     * Writable directory where HTTP and HTTPS sources are cached as they
+     * play. Ranges played before, on a replay or when seeking back, are read
+     * from there and only the rest is fetched, a source cached in full
+     * plays without a connection. Live streams are not cached. null or an
+     * empty string, the default, streams without caching. Applies to the
+     * next data source that is prepared.
+     */
+    public static final int KEY_PARAMETER_CACHE_DIR = 2016;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Size in megabytes {@link #KEY_PARAMETER_CACHE_DIR} is kept under, the
+     * sources opened longest ago are deleted first. Defaults to 100.
+     */
+    public static final int KEY_PARAMETER_CACHE_SIZE_MB = 2017;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * Kilobytes read ahead of the demuxer by a thread of its own, so a slow
+     * network read does not hold up playback. 0, the default, reads
+     * directly, otherwise 128 to 65536. Only http and https sources of known
+     * size are read ahead. Applies to the next data source that is prepared.
+     */
+    public static final int KEY_PARAMETER_READAHEAD_KB = 2018;
+    /**
+     * Key used in setParameter and getIntParameter methods.
+     * 1 fills the {@link #KEY_PARAMETER_READAHEAD_KB} buffer in bursts and
+     * leaves the connection idle in between so the radio can sleep, 0, the
+     * default, keeps it topped up.
+     */
+    public static final int KEY_PARAMETER_READAHEAD_BURST = 2019;
+    /**
+     * Key used in getIntParameter method.
+     * Duration of audio, in milliseconds, currently buffered.
+     */
+    public static final int KEY_PARAMETER_AUDIO_BUFFERED_MS = 2100;
+    /**
+     * Key used in getIntParameter method.
+     * Duration of video, in milliseconds, currently buffered.
+     */
+    public static final int KEY_PARAMETER_VIDEO_BUFFERED_MS = 2101;
+    /**
+     * Key used in getIntParameter method.
+     * Number of times the reading thread was woken up after it paused.
+     */
+    public static final int KEY_PARAMETER_READ_WAKEUPS = 2102;
+    /**
+     * Key used in getIntParameter method.
+     * Time, in milliseconds, from the last seek request until the first packet
+     * after it was read.
+     */
+    public static final int KEY_PARAMETER_SEEK_LATENCY_MS = 2103;
+    /**
+     * Key used in getIntParameter method.
+     * Number of times the audio output ran out of decoded samples and played
+     * silence instead.
+     */
+    public static final int KEY_PARAMETER_AUDIO_UNDERRUNS = 2104;
+    /**
+     * Key used in getIntParameter method.
+     * Averaged difference, in milliseconds, between the audio clock and the
+     * clock it is synchronized to. Positive when audio is ahead.
+     */
+    public static final int KEY_PARAMETER_AUDIO_DRIFT_MS = 2105;
+    /**
+     * Key used in getIntParameter method.
+     * Correction applied to the last audio frame to absorb the drift, in
+     * parts per million of its length. Positive when audio is stretched.
+     */
+    public static final int KEY_PARAMETER_AUDIO_COMPENSATION_PPM = 2106;
+    /**
+     * Key used in getIntParameter method.
+     * Number of video frames dropped because they were late, either before
+     * they were converted or when they were due to be shown.
+     */
+    public static final int KEY_PARAMETER_VIDEO_FRAMES_DROPPED = 2107;
+    /**
+     * Key used in getIntParameter method.
+     * How much work the video decoder currently skips to keep up, from 0
+     * (none) to 3. It rises while frames keep being dropped, each step is
+     * reported with {@link #MEDIA_INFO_VIDEO_TRACK_LAGGING}, and falls back
+     * once playback keeps up again.
+     */
+    public static final int KEY_PARAMETER_VIDEO_SKIP_LEVEL = 2108;
+    /**
+     * Key used in getIntParameter method.
+     * Video frames decoded per second of time spent in the decoder, waits for
+     * packets or for the display excluded.
+     */
+    public static final int KEY_PARAMETER_VIDEO_DECODE_FPS = 2109;
+    /**
+     * Key used in getIntParameter method.
+     * Number of threads the video decoder actually uses.
+     */
+    public static final int KEY_PARAMETER_DECODER_THREADS = 2110;
+    /**
+     * Key used in getIntParameter method.
+     * Number of times the video display thread woke up since prepare.
+     */
+    public static final int KEY_PARAMETER_VIDEO_REFRESH_WAKEUPS = 2111;
+    /**
+     * Key used in getIntParameter method.
+     * Time in milliseconds from prepareAsync() to MEDIA_PREPARED.
+     */
+    public static final int KEY_PARAMETER_PREPARE_LATENCY_MS = 2112;
+    /**
+     * Key used in getIntParameter method.
+     * Time in milliseconds spent opening the data source and reading its
+     * stream information.
+     */
+    public static final int KEY_PARAMETER_PROBE_TIME_MS = 2113;
+    /**
+     * Key used in getIntParameter method.
+     * 1 if a bounded probe came back incomplete and was redone in full.
+     */
+    public static final int KEY_PARAMETER_PROBE_FALLBACK = 2114;
+    /**
+     * Key used in getIntParameter method.
+     * Time in milliseconds from the last seekTo() to the first picture shown
+     * at the new position.
+     */
+    public static final int KEY_PARAMETER_SEEK_DISPLAY_LATENCY_MS = 2115;
+    /**
+     * Key used in getIntParameter method.
+     * Number of seek targets replaced by a newer seekTo() before they were
+     * reached.
+     */
+    public static final int KEY_PARAMETER_SEEKS_COALESCED = 2116;
+    /**
+     * Key used in getIntParameter method.
+     * Number of frames the last {@link #SEEK_CLOSEST} seek decoded and
+     * discarded on the way from the key frame to its target.
+     */
+    public static final int KEY_PARAMETER_SEEK_CATCHUP_FRAMES = 2117;
+    /**
+     * Key used in getIntParameter method.
+     * Number of positions in the seek index of the current source, 0 if its
+     * container has an index of its own.
+     */
+    public static final int KEY_PARAMETER_SEEK_INDEX_ENTRIES = 2118;
+    /**
+     * Key used in getIntParameter method.
+     * Kilobytes of the current source read from {@link #KEY_PARAMETER_CACHE_DIR}.
+     */
+    public static final int KEY_PARAMETER_CACHE_READ_KB = 2119;
+    /**
+     * Key used in getIntParameter method.
+     * Kilobytes of the current source fetched from the network while it was
+     * cached.
+     */
+    public static final int KEY_PARAMETER_NETWORK_READ_KB = 2120;
+    /**
+     * Key used in getIntParameter method.
+     * Kilobytes read ahead of the demuxer and not yet used.
+     */
+    public static final int KEY_PARAMETER_READAHEAD_BUFFERED_KB = 2121;
+    /**
+     * Key used in getIntParameter method.
+     * Reads of the current source that had to wait for the network although
+     * it was read ahead.
+     */
+    public static final int KEY_PARAMETER_READAHEAD_STALLS = 2122;
+    /**
+     * Key used in getIntParameter method.
+     * Bursts the current source was read in, see
+     * {@link #KEY_PARAMETER_READAHEAD_BURST}.
+     */
+    public static final int KEY_PARAMETER_READAHEAD_BURSTS = 2123;
 
     /**
      * Sets the parameter indicated by key.
@@ -0,0 +1,137 @@
+# Native microbenchmarks for the player internals. These are not part of the
+# library build, run them with:
+#
+#   ndk-build NDK_PROJECT_PATH=. APP_BUILD_SCRIPT=jni/Android.mk NDK_APPLICATION_MK=jni/Application.mk
+#   adb push libs/<abi>/* /data/local/tmp/ && adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./packet_queue_bench"
+#   adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./resample_bench"
+#   adb push <media files> /data/local/tmp/ && adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./prepare_bench 5 <media files>"
+#   adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./scrub_bench <media file>"
+#   adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./seek_bench <video file>"
+#   adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./index_bench <media file> /data/local/tmp"
+#   adb shell "cd /data/local/tmp && mkdir -p cache && LD_LIBRARY_PATH=. ./cache_bench <media file> cache"
+#   adb shell "cd /data/local/tmp && LD_LIBRARY_PATH=. ./readahead_bench <media file>"
+
+BENCH_PATH := $(call my-dir)
+MAIN_JNI_PATH := $(BENCH_PATH)/../../main/jni
+
+include $(MAIN_JNI_PATH)/SDL/Android.mk
+include $(MAIN_JNI_PATH)/ffmpeg/Android.mk
+
+LOCAL_PATH := $(BENCH_PATH)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := packet_queue_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/SDL/include $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := packet_queue_bench.c \
+	../../main/jni/player/packet_queue.c
+LOCAL_SHARED_LIBRARIES := SDL2 libavformat libavcodec libavutil
+LOCAL_LDLIBS += -llog
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := resample_bench
+LOCAL_SRC_FILES := resample_bench.c
+LOCAL_SHARED_LIBRARIES := libswresample libavutil
+LOCAL_LDLIBS += -llog
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := prepare_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/SDL/include $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := prepare_bench.c \
+	../../main/jni/player/ffmpeg_mediaplayer.c \
+	../../main/jni/player/audioplayer.c \
+	../../main/jni/player/videoplayer.c \
+	../../main/jni/player/ffmpeg_utils.c \
+	../../main/jni/player/packet_queue.c \
+	../../main/jni/player/pcm_ring.c \
+	../../main/jni/player/seek_index.c \
+	../../main/jni/player/cache_file.c \
+	../../main/jni/player/cache_io.c \
+	../../main/jni/player/readahead_io.c
+LOCAL_SHARED_LIBRARIES := SDL2 libswresample libswscale libavcodec libavformat libavutil
+LOCAL_LDLIBS += -lOpenSLES -llog -landroid
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := scrub_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/SDL/include $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := scrub_bench.c \
+	../../main/jni/player/ffmpeg_mediaplayer.c \
+	../../main/jni/player/audioplayer.c \
+	../../main/jni/player/videoplayer.c \
+	../../main/jni/player/ffmpeg_utils.c \
+	../../main/jni/player/packet_queue.c \
+	../../main/jni/player/pcm_ring.c \
+	../../main/jni/player/seek_index.c \
+	../../main/jni/player/cache_file.c \
+	../../main/jni/player/cache_io.c \
+	../../main/jni/player/readahead_io.c
+LOCAL_SHARED_LIBRARIES := SDL2 libswresample libswscale libavcodec libavformat libavutil
+LOCAL_LDLIBS += -lOpenSLES -llog -landroid
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := seek_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/SDL/include $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := seek_bench.c \
+	../../main/jni/player/ffmpeg_mediaplayer.c \
+	../../main/jni/player/audioplayer.c \
+	../../main/jni/player/videoplayer.c \
+	../../main/jni/player/ffmpeg_utils.c \
+	../../main/jni/player/packet_queue.c \
+	../../main/jni/player/pcm_ring.c \
+	../../main/jni/player/seek_index.c \
+	../../main/jni/player/cache_file.c \
+	../../main/jni/player/cache_io.c \
+	../../main/jni/player/readahead_io.c
+LOCAL_SHARED_LIBRARIES := SDL2 libswresample libswscale libavcodec libavformat libavutil
+LOCAL_LDLIBS += -lOpenSLES -llog -landroid
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := index_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := index_bench.c \
+	../../main/jni/player/seek_index.c \
+	../../main/jni/player/cache_file.c
+LOCAL_SHARED_LIBRARIES := libavformat libavcodec libavutil
+LOCAL_LDLIBS += -llog
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := cache_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := cache_bench.c \
+	http_stub.c \
+	../../main/jni/player/cache_file.c \
+	../../main/jni/player/cache_io.c
+LOCAL_SHARED_LIBRARIES := libavformat libavcodec libavutil
+LOCAL_LDLIBS += -llog
+
+include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := readahead_bench
+LOCAL_C_INCLUDES := $(MAIN_JNI_PATH)/SDL/include $(MAIN_JNI_PATH)/player
+LOCAL_SRC_FILES := readahead_bench.c \
+	http_stub.c \
+	../../main/jni/player/readahead_io.c
+LOCAL_SHARED_LIBRARIES := SDL2 libavformat libavcodec libavutil
+LOCAL_LDLIBS += -llog
+
+include $(BUILD_EXECUTABLE)
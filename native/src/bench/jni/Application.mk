@@ -0,0 +1,4 @@
+# build with android-ndk-r20
+
+APP_ABI := armeabi-v7a x86 x86_64 arm64-v8a
+APP_PLATFORM := android-21
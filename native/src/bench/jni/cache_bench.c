@@ -0,0 +1,127 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Reads a file through the HTTP cache from a local stand-in server the way
+ * the demuxer does: in full for a play, and in small reads at random
+ * offsets for scrubbing. Reports the time and what the server sent for a
+ * first play, a replay, a first scrub and the same scrub again, then
+ * checks that a cache sized for one and a half copies drops the older of
+ * two sources.
+ *
+ * delay is added by the server before every response, a network round
+ * trip.
+ *
+ * Usage: cache_bench file cache_dir [delay ms] [reads]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <cache_io.h>
+
+#include "http_stub.h"
+
+#define DEFAULT_DELAY_MS 20
+#define DEFAULT_READS 200
+#define READ_SIZE 65536
+
+static HttpStub stub;
+
+static void run(const char *name, const char *dir, int64_t max_bytes, const char *url,
+    int reads) {
+  AVIOInterruptCB interrupt = { NULL, NULL };
+  CacheIO *cache = NULL;
+  uint8_t buf[READ_SIZE];
+  int64_t sent = http_stub_bytes_sent(&stub), start, size;
+  int requests = http_stub_requests(&stub);
+  unsigned int seed = 1;
+  int i;
+
+  start = av_gettime_relative();
+  if (cache_io_open(&cache, dir, max_bytes, url, &interrupt, NULL) < 0) {
+    fprintf(stderr, "Could not open %s\n", url);
+    exit(1);
+  }
+  size = avio_size(cache->pb);
+
+  if (reads == 0) {
+    while (avio_read(cache->pb, buf, sizeof(buf)) > 0);
+  } else {
+    /* the same offsets every time */
+    for (i = 0; i < reads; i++) {
+      seed = seed * 1103515245 + 12345;
+      avio_seek(cache->pb, (int64_t) ((seed >> 8) / (double) (1 << 24) * size), SEEK_SET);
+      avio_read(cache->pb, buf, sizeof(buf));
+    }
+  }
+  cache_io_close(&cache);
+
+  printf("%-14s %9.3f ms  %10lld bytes sent  %4d requests\n", name,
+      (av_gettime_relative() - start) / 1000.0,
+      (long long) (http_stub_bytes_sent(&stub) - sent), http_stub_requests(&stub) - requests);
+}
+
+int main(int argc, char *argv[]) {
+  const char *dir;
+  int delay_ms = argc > 3 ? atoi(argv[3]) : DEFAULT_DELAY_MS;
+  int reads = argc > 4 ? atoi(argv[4]) : DEFAULT_READS;
+  char url[64], url_a[64], url_b[64];
+  int64_t max_bytes = INT64_MAX / 2;
+
+  if (argc < 3 || reads <= 0) {
+    fprintf(stderr, "Usage: %s file cache_dir [delay ms] [reads]\n", argv[0]);
+    return 1;
+  }
+  dir = argv[2];
+
+  av_register_all();
+  avformat_network_init();
+
+  if (http_stub_start(&stub, argv[1], delay_ms) < 0) {
+    fprintf(stderr, "Could not serve %s\n", argv[1]);
+    return 1;
+  }
+  snprintf(url, sizeof(url), "http://127.0.0.1:%d/media", stub.port);
+  snprintf(url_a, sizeof(url_a), "http://127.0.0.1:%d/a", stub.port);
+  snprintf(url_b, sizeof(url_b), "http://127.0.0.1:%d/b", stub.port);
+  printf("%s, %lld bytes, %d ms round trip\n", argv[1], (long long) stub.size, delay_ms);
+
+  cache_io_trim(dir, 0, NULL);
+  run("play", dir, max_bytes, url, 0);
+  run("replay", dir, max_bytes, url, 0);
+
+  cache_io_trim(dir, 0, NULL);
+  run("scrub", dir, max_bytes, url, reads);
+  run("scrub again", dir, max_bytes, url, reads);
+
+  /* room for one copy and a half: b has to push a out */
+  cache_io_trim(dir, 0, NULL);
+  max_bytes = stub.size * 3 / 2;
+  run("play a", dir, max_bytes, url_a, 0);
+  run("play b", dir, max_bytes, url_b, 0);
+  run("replay b", dir, max_bytes, url_b, 0);
+  run("replay a", dir, max_bytes, url_a, 0);
+
+  cache_io_trim(dir, 0, NULL);
+  http_stub_stop(&stub);
+  return 0;
+}
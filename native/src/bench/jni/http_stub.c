@@ -0,0 +1,276 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <arpa/inet.h>
+#include <fcntl.h>
+#include <inttypes.h>
+#include <netinet/in.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "http_stub.h"
+
+#define REQUEST_SIZE 8192
+#define CHUNK_SIZE 65536
+/* what a rate limited link sends at a time */
+#define LINK_CHUNK_SIZE 4096
+
+#define STUB_MIN(a, b) ((a) < (b) ? (a) : (b))
+
+typedef struct Connection {
+  HttpStub *stub;
+  int fd;
+} Connection;
+
+static int64_t now_us(void) {
+  struct timespec ts;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (int64_t) ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+static void count_sent(HttpStub *s, ssize_t n) {
+  int64_t now = now_us();
+
+  pthread_mutex_lock(&s->mutex);
+  if (s->last_send && now - s->last_send >= IDLE_GAP_MS * 1000) {
+    s->idle_periods++;
+  }
+  s->last_send = now;
+  s->bytes_sent += n;
+  pthread_mutex_unlock(&s->mutex);
+}
+
+/* holds a connection back to the link rate, with a hiccup every second */
+static void pace(HttpStub *s, int64_t start, int64_t sent, int64_t *next_hiccup) {
+  int64_t due, now;
+
+  if (s->hiccup_ms > 0 && (now = now_us()) >= *next_hiccup) {
+    usleep(s->hiccup_ms * 1000);
+    *next_hiccup = now_us() + 1000000;
+  }
+  if (s->rate_kbps > 0) {
+    due = start + sent * 8 * 1000 / s->rate_kbps;
+    now = now_us();
+    if (due > now) {
+      usleep(due - now);
+    }
+  }
+}
+
+static int send_all(int fd, const char *buf, size_t len) {
+  ssize_t n;
+
+  while (len > 0) {
+    n = send(fd, buf, len, MSG_NOSIGNAL);
+    if (n <= 0) {
+      return -1;
+    }
+    buf += n;
+    len -= n;
+  }
+  return 0;
+}
+
+/* reads the request head, the body of a GET is empty */
+static int read_request(int fd, char *buf, size_t size) {
+  size_t len = 0;
+  ssize_t n;
+
+  while (len < size - 1) {
+    n = recv(fd, buf + len, size - 1 - len, 0);
+    if (n <= 0) {
+      return -1;
+    }
+    len += n;
+    buf[len] = '\0';
+    if (strstr(buf, "\r\n\r\n")) {
+      return 0;
+    }
+  }
+  return -1;
+}
+
+static void *serve(void *arg) {
+  Connection *conn = arg;
+  HttpStub *s = conn->stub;
+  char request[REQUEST_SIZE], head[512], *chunk = NULL, *range;
+  int64_t start = 0, end = s->size - 1, pos, send_start, next_hiccup;
+  ssize_t n;
+  int partial = 0;
+
+  if (read_request(conn->fd, request, sizeof(request)) < 0) {
+    goto done;
+  }
+  range = strstr(request, "Range: bytes=");
+  if (range) {
+    if (sscanf(range, "Range: bytes=%" SCNd64 "-%" SCNd64, &start, &end) < 1) {
+      goto done;
+    }
+    end = STUB_MIN(end, s->size - 1);
+    partial = 1;
+  }
+
+  pthread_mutex_lock(&s->mutex);
+  s->requests++;
+  pthread_mutex_unlock(&s->mutex);
+  if (s->delay_ms > 0) {
+    usleep(s->delay_ms * 1000);
+  }
+
+  if (start >= s->size) {
+    snprintf(head, sizeof(head), "HTTP/1.1 416 Range Not Satisfiable\r\n"
+        "Content-Range: bytes */%" PRId64 "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+        s->size);
+    send_all(conn->fd, head, strlen(head));
+    goto done;
+  }
+  if (partial) {
+    snprintf(head, sizeof(head), "HTTP/1.1 206 Partial Content\r\n"
+        "Content-Range: bytes %" PRId64 "-%" PRId64 "/%" PRId64 "\r\n", start, end, s->size);
+  } else {
+    snprintf(head, sizeof(head), "HTTP/1.1 200 OK\r\n");
+  }
+  snprintf(head + strlen(head), sizeof(head) - strlen(head),
+      "Content-Type: application/octet-stream\r\nAccept-Ranges: bytes\r\n"
+      "Content-Length: %" PRId64 "\r\nConnection: close\r\n\r\n", end - start + 1);
+  if (send_all(conn->fd, head, strlen(head)) < 0) {
+    goto done;
+  }
+
+  chunk = malloc(CHUNK_SIZE);
+  send_start = now_us();
+  next_hiccup = send_start + 1000000;
+  for (pos = start; chunk && pos <= end; pos += n) {
+    n = pread(s->fd, chunk, STUB_MIN(s->rate_kbps > 0 ? LINK_CHUNK_SIZE : CHUNK_SIZE,
+        end + 1 - pos), pos);
+    /* the client closes a connection it no longer reads after a seek */
+    if (n <= 0 || send_all(conn->fd, chunk, n) < 0) {
+      break;
+    }
+    count_sent(s, n);
+    pace(s, send_start, pos + n - start, &next_hiccup);
+  }
+
+done:
+  free(chunk);
+  close(conn->fd);
+  free(conn);
+  return NULL;
+}
+
+/* a thread per connection, FFmpeg opens the next one before closing the last */
+static void *accept_loop(void *arg) {
+  HttpStub *s = arg;
+  Connection *conn;
+  pthread_t thread;
+  int fd;
+
+  while ((fd = accept(s->listen_fd, NULL, NULL)) >= 0) {
+    conn = malloc(sizeof(Connection));
+    if (!conn) {
+      close(fd);
+      continue;
+    }
+    conn->stub = s;
+    conn->fd = fd;
+    if (pthread_create(&thread, NULL, serve, conn) != 0) {
+      close(fd);
+      free(conn);
+      continue;
+    }
+    pthread_detach(thread);
+  }
+  return NULL;
+}
+
+int http_stub_start(HttpStub *s, const char *filename, int delay_ms) {
+  struct sockaddr_in addr;
+  socklen_t addr_len = sizeof(addr);
+  struct stat sb;
+
+  memset(s, 0, sizeof(HttpStub));
+  s->delay_ms = delay_ms;
+  s->fd = open(filename, O_RDONLY);
+  if (s->fd < 0 || fstat(s->fd, &sb) != 0) {
+    return -1;
+  }
+  s->size = sb.st_size;
+
+  s->listen_fd = socket(AF_INET, SOCK_STREAM, 0);
+  memset(&addr, 0, sizeof(addr));
+  addr.sin_family = AF_INET;
+  addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+  addr.sin_port = 0;
+  if (s->listen_fd < 0 ||
+      bind(s->listen_fd, (struct sockaddr *) &addr, sizeof(addr)) != 0 ||
+      listen(s->listen_fd, 16) != 0 ||
+      getsockname(s->listen_fd, (struct sockaddr *) &addr, &addr_len) != 0) {
+    return -1;
+  }
+  s->port = ntohs(addr.sin_port);
+
+  pthread_mutex_init(&s->mutex, NULL);
+  return pthread_create(&s->thread, NULL, accept_loop, s);
+}
+
+/* call before the first request */
+void http_stub_set_link(HttpStub *s, int rate_kbps, int hiccup_ms) {
+  s->rate_kbps = rate_kbps;
+  s->hiccup_ms = hiccup_ms;
+}
+
+/* connections still open are left to finish */
+void http_stub_stop(HttpStub *s) {
+  shutdown(s->listen_fd, SHUT_RDWR);
+  close(s->listen_fd);
+  pthread_join(s->thread, NULL);
+  close(s->fd);
+}
+
+int64_t http_stub_bytes_sent(HttpStub *s) {
+  int64_t bytes;
+
+  pthread_mutex_lock(&s->mutex);
+  bytes = s->bytes_sent;
+  pthread_mutex_unlock(&s->mutex);
+  return bytes;
+}
+
+int http_stub_requests(HttpStub *s) {
+  int requests;
+
+  pthread_mutex_lock(&s->mutex);
+  requests = s->requests;
+  pthread_mutex_unlock(&s->mutex);
+  return requests;
+}
+
+int http_stub_idle_periods(HttpStub *s) {
+  int idle_periods;
+
+  pthread_mutex_lock(&s->mutex);
+  idle_periods = s->idle_periods;
+  pthread_mutex_unlock(&s->mutex);
+  return idle_periods;
+}
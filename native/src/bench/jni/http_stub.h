@@ -0,0 +1,59 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef HTTP_STUB_H_
+#define HTTP_STUB_H_
+
+#include <pthread.h>
+#include <stdint.h>
+
+/* long enough for a mobile radio to drop to idle, in milliseconds */
+#define IDLE_GAP_MS 1000
+
+/*
+ * Stand-in for a media server: serves one file on 127.0.0.1 for any path,
+ * with range requests, one request per connection, and counts what it
+ * sends. delay_ms is added before every response, a round trip.
+ *
+ * http_stub_set_link() makes it a slower link: a bit rate, and a hiccup
+ * of so many milliseconds after every second of sending.
+ */
+typedef struct HttpStub {
+  int listen_fd;
+  int port;
+  int fd; /* the file served */
+  int64_t size;
+  int delay_ms;
+  int rate_kbps; /* 0 for as fast as possible */
+  int hiccup_ms;
+  pthread_t thread;
+  pthread_mutex_t mutex;
+  int64_t bytes_sent;
+  int requests;
+  int64_t last_send; /* microseconds */
+  int idle_periods; /* gaps of IDLE_GAP_MS or more between sends */
+} HttpStub;
+
+int http_stub_start(HttpStub *s, const char *filename, int delay_ms);
+void http_stub_set_link(HttpStub *s, int rate_kbps, int hiccup_ms);
+void http_stub_stop(HttpStub *s);
+int64_t http_stub_bytes_sent(HttpStub *s);
+int http_stub_requests(HttpStub *s);
+int http_stub_idle_periods(HttpStub *s);
+
+#endif /* HTTP_STUB_H_ */
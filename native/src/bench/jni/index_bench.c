@@ -0,0 +1,160 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Times avformat_seek_file() on a file whose container has no index (MP3,
+ * AAC, MPEG-TS), to targets spread over the whole duration, without and
+ * with the seek index the player builds. Reports the time from the seek to
+ * the first packet and how far that packet was from the target, the time
+ * a full scan takes and, with a cache directory, the time to load the
+ * saved index back.
+ *
+ * Usage: index_bench file [cache dir] [seeks]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <seek_index.h>
+
+#define DEFAULT_SEEKS 20
+/* as the player indexes audio, video goes by key frame */
+#define AUDIO_INTERVAL 1000000
+
+static AVFormatContext *open_file(const char *filename) {
+  AVFormatContext *ic = NULL;
+
+  if (avformat_open_input(&ic, filename, NULL, NULL) != 0 ||
+      avformat_find_stream_info(ic, NULL) < 0) {
+    fprintf(stderr, "Could not open %s\n", filename);
+    exit(1);
+  }
+  return ic;
+}
+
+static int primary_stream(AVFormatContext *ic) {
+  int i = av_find_best_stream(ic, AVMEDIA_TYPE_VIDEO, -1, -1, NULL, 0);
+
+  if (i < 0) {
+    i = av_find_best_stream(ic, AVMEDIA_TYPE_AUDIO, -1, -1, NULL, 0);
+  }
+  if (i < 0) {
+    fprintf(stderr, "No audio or video stream\n");
+    exit(1);
+  }
+  return i;
+}
+
+static void run_seeks(AVFormatContext *ic, int stream, int seeks, const char *name) {
+  AVStream *st = ic->streams[stream];
+  AVPacket pkt;
+  int64_t duration = ic->duration, target, start, t, ts, total = 0, worst = 0, error = 0;
+  int i;
+
+  for (i = 0; i < seeks; i++) {
+    /* strided, so consecutive targets are not next to each other */
+    target = (int64_t) (duration * (0.1 + 0.8 * ((i * 7) % seeks) / FFMAX(seeks - 1, 1)));
+    start = av_gettime_relative();
+    if (avformat_seek_file(ic, -1, INT64_MIN, target, INT64_MAX, 0) < 0) {
+      fprintf(stderr, "Seek to %lld us failed\n", (long long) target);
+      exit(1);
+    }
+    do {
+      if (av_read_frame(ic, &pkt) < 0) {
+        fprintf(stderr, "No packet after the seek to %lld us\n", (long long) target);
+        exit(1);
+      }
+      ts = pkt.stream_index == stream ? (pkt.dts != AV_NOPTS_VALUE ? pkt.dts : pkt.pts) : AV_NOPTS_VALUE;
+      av_packet_unref(&pkt);
+    } while (ts == AV_NOPTS_VALUE);
+    t = av_gettime_relative() - start;
+
+    total += t;
+    worst = FFMAX(worst, t);
+    error += FFABS(av_rescale_q(ts, st->time_base, AV_TIME_BASE_Q) - target);
+  }
+
+  printf("%-10s mean %9.3f ms  worst %9.3f ms  %9.3f ms from the target\n",
+      name, total / 1000.0 / seeks, worst / 1000.0, error / 1000.0 / seeks);
+}
+
+int main(int argc, char *argv[]) {
+  const char *filename;
+  const char *dir = argc > 2 ? argv[2] : NULL;
+  int seeks = argc > 3 ? atoi(argv[3]) : DEFAULT_SEEKS;
+  AVFormatContext *ic;
+  AVPacket pkt;
+  SeekIndex index, loaded;
+  int64_t size, start;
+  int stream, interval;
+
+  if (argc < 2 || seeks <= 0) {
+    fprintf(stderr, "Usage: %s file [cache dir] [seeks]\n", argv[0]);
+    return 1;
+  }
+  filename = argv[1];
+
+  av_register_all();
+
+  ic = open_file(filename);
+  stream = primary_stream(ic);
+  interval = ic->streams[stream]->codecpar->codec_type == AVMEDIA_TYPE_AUDIO ? AUDIO_INTERVAL : 0;
+  size = avio_size(ic->pb);
+  if (ic->streams[stream]->nb_index_entries > 0) {
+    printf("%s has an index of its own after probing, the results may not differ\n", filename);
+  }
+  printf("%s\n", filename);
+  run_seeks(ic, stream, seeks, "no index");
+  avformat_close_input(&ic);
+
+  /* what the player's scan thread does */
+  ic = open_file(filename);
+  seek_index_open(&index, dir, filename, size, 0, ic->streams[stream], interval);
+  start = av_gettime_relative();
+  while (av_read_frame(ic, &pkt) >= 0) {
+    if (pkt.stream_index == stream) {
+      seek_index_add(&index, &pkt);
+    }
+    av_packet_unref(&pkt);
+  }
+  seek_index_finish(&index);
+  printf("scan %.3f ms, %d entries%s\n", (av_gettime_relative() - start) / 1000.0,
+      index.nb_entries, index.complete ? "" : ", incomplete");
+  avformat_close_input(&ic);
+
+  ic = open_file(filename);
+  if (dir) {
+    seek_index_save(&index);
+    start = av_gettime_relative();
+    seek_index_open(&loaded, dir, filename, size, 0, ic->streams[stream], interval);
+    printf("load %.3f ms, %d entries\n", (av_gettime_relative() - start) / 1000.0,
+        loaded.nb_entries);
+    seek_index_apply(&loaded, ic->streams[stream]);
+    seek_index_close(&loaded);
+  } else {
+    seek_index_apply(&index, ic->streams[stream]);
+  }
+  run_seeks(ic, stream, seeks, "index");
+  avformat_close_input(&ic);
+
+  seek_index_close(&index);
+  return 0;
+}
@@ -0,0 +1,281 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Pushes packets from a demuxer-like producer thread to a decoder-like
+ * consumer thread and reports the cost per packet for the previous
+ * AVPacketList queue and for the ring buffer in packet_queue.c.
+ *
+ * With a payload size the packets point into producer owned memory, the
+ * way a demuxer without reference counted packets hands them over, and the
+ * allocations made by each queue are counted as well.
+ *
+ * Usage: packet_queue_bench [packets] [runs] [payload bytes]
+ */
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <packet_queue.h>
+
+#define DEFAULT_PACKETS 1000000
+#define DEFAULT_RUNS 5
+
+/* the AVPacketList queue as it was before packet_queue.c */
+typedef struct LegacyPacketQueue {
+  AVPacketList *first_pkt, *last_pkt;
+  int nb_packets;
+  int size;
+  int abort_request;
+  int nb_allocs;
+  SDL_mutex *mutex;
+  SDL_cond *cond;
+} LegacyPacketQueue;
+
+static void legacy_queue_init(LegacyPacketQueue *q) {
+  memset(q, 0, sizeof(LegacyPacketQueue));
+  q->mutex = SDL_CreateMutex();
+  q->cond = SDL_CreateCond();
+}
+
+static void legacy_queue_destroy(LegacyPacketQueue *q) {
+  AVPacketList *pkt, *pkt1;
+
+  for (pkt = q->first_pkt; pkt != NULL; pkt = pkt1) {
+    pkt1 = pkt->next;
+    av_packet_unref(&pkt->pkt);
+    av_freep(&pkt);
+  }
+  SDL_DestroyMutex(q->mutex);
+  SDL_DestroyCond(q->cond);
+}
+
+static int legacy_queue_put(LegacyPacketQueue *q, AVPacket *pkt) {
+  AVPacketList *pkt1;
+
+  if (!pkt->buf && pkt->data) {
+    /* av_dup_packet() copies the payload into a new buffer */
+    q->nb_allocs++;
+  }
+  if (av_dup_packet(pkt) < 0) {
+    return -1;
+  }
+  pkt1 = av_malloc(sizeof(AVPacketList));
+  if (!pkt1)
+    return -1;
+  q->nb_allocs++;
+  pkt1->pkt = *pkt;
+  pkt1->next = NULL;
+
+  SDL_LockMutex(q->mutex);
+
+  if (!q->last_pkt)
+    q->first_pkt = pkt1;
+  else
+    q->last_pkt->next = pkt1;
+  q->last_pkt = pkt1;
+  q->nb_packets++;
+  q->size += pkt1->pkt.size;
+  SDL_CondSignal(q->cond);
+
+  SDL_UnlockMutex(q->mutex);
+  return 0;
+}
+
+static int legacy_queue_get(LegacyPacketQueue *q, AVPacket *pkt) {
+  AVPacketList *pkt1;
+  int ret;
+
+  SDL_LockMutex(q->mutex);
+
+  for (;;) {
+    if (q->abort_request) {
+      ret = -1;
+      break;
+    }
+
+    pkt1 = q->first_pkt;
+    if (pkt1) {
+      q->first_pkt = pkt1->next;
+      if (!q->first_pkt)
+        q->last_pkt = NULL;
+      q->nb_packets--;
+      q->size -= pkt1->pkt.size;
+      *pkt = pkt1->pkt;
+      av_free(pkt1);
+      ret = 1;
+      break;
+    } else {
+      SDL_CondWait(q->cond, q->mutex);
+    }
+  }
+  SDL_UnlockMutex(q->mutex);
+  return ret;
+}
+
+typedef struct Bench {
+  int packets;
+  int payload_size;
+  uint8_t *payload;
+  int in_order;
+  int nb_allocs;
+  LegacyPacketQueue legacy;
+  PacketQueue ring;
+} Bench;
+
+/*
+ * Without a payload only the queue itself is measured. The sequence number
+ * travels in pos to check that nothing is lost or reordered.
+ */
+static void make_packet(Bench *b, AVPacket *pkt, int i) {
+  av_init_packet(pkt);
+  pkt->data = b->payload;
+  pkt->size = b->payload_size;
+  pkt->pos = i;
+}
+
+static void *legacy_consumer(void *arg) {
+  Bench *b = arg;
+  AVPacket pkt;
+  int i;
+
+  for (i = 0; i < b->packets; i++) {
+    if (legacy_queue_get(&b->legacy, &pkt) < 0) {
+      break;
+    }
+    if (pkt.pos != i) {
+      b->in_order = 0;
+    }
+    av_packet_unref(&pkt);
+  }
+  return NULL;
+}
+
+static void *ring_consumer(void *arg) {
+  Bench *b = arg;
+  AVPacket pkt;
+  int i;
+
+  for (i = 0; i < b->packets; i++) {
+    if (packet_queue_get(&b->ring, &pkt, 1) < 0) {
+      break;
+    }
+    if (pkt.pos != i) {
+      b->in_order = 0;
+    }
+    av_packet_unref(&pkt);
+  }
+  return NULL;
+}
+
+static int64_t run_legacy(Bench *b) {
+  pthread_t consumer;
+  AVPacket pkt;
+  int64_t start, end;
+  int i;
+
+  legacy_queue_init(&b->legacy);
+  b->in_order = 1;
+
+  start = av_gettime_relative();
+  pthread_create(&consumer, NULL, legacy_consumer, b);
+  for (i = 0; i < b->packets; i++) {
+    make_packet(b, &pkt, i);
+    legacy_queue_put(&b->legacy, &pkt);
+  }
+  pthread_join(consumer, NULL);
+  end = av_gettime_relative();
+
+  b->nb_allocs = b->legacy.nb_allocs;
+  legacy_queue_destroy(&b->legacy);
+  return end - start;
+}
+
+static int64_t run_ring(Bench *b) {
+  pthread_t consumer;
+  AVPacket pkt;
+  int64_t start, end;
+  int i;
+
+  if (packet_queue_init(&b->ring) < 0) {
+    fprintf(stderr, "Could not allocate packet queue\n");
+    exit(1);
+  }
+  b->in_order = 1;
+
+  start = av_gettime_relative();
+  pthread_create(&consumer, NULL, ring_consumer, b);
+  for (i = 0; i < b->packets; i++) {
+    make_packet(b, &pkt, i);
+    packet_queue_put(&b->ring, &pkt);
+  }
+  pthread_join(consumer, NULL);
+  end = av_gettime_relative();
+
+  b->nb_allocs = b->ring.nb_allocs;
+  packet_queue_destroy(&b->ring);
+  return end - start;
+}
+
+static void report(const char *name, int packets, int64_t best, int nb_allocs, int in_order) {
+  printf("%-8s %10d packets  best %8.3f ms  %8.1f ns/packet  %10d allocs  %12.0f allocs/s  %s\n",
+      name, packets, best / 1000.0, best * 1000.0 / packets,
+      nb_allocs, nb_allocs * 1000000.0 / best,
+      in_order ? "ok" : "OUT OF ORDER");
+}
+
+int main(int argc, char *argv[]) {
+  Bench b;
+  int64_t t, best_legacy = INT64_MAX, best_ring = INT64_MAX;
+  int legacy_in_order = 1, ring_in_order = 1;
+  int legacy_allocs = 0, ring_allocs = 0;
+  int runs = DEFAULT_RUNS;
+  int i;
+
+  memset(&b, 0, sizeof(Bench));
+  b.packets = argc > 1 ? atoi(argv[1]) : DEFAULT_PACKETS;
+  if (argc > 2) {
+    runs = atoi(argv[2]);
+  }
+  if (argc > 3) {
+    b.payload_size = atoi(argv[3]);
+    b.payload = av_mallocz(b.payload_size);
+  }
+
+  for (i = 0; i < runs; i++) {
+    t = run_legacy(&b);
+    best_legacy = FFMIN(best_legacy, t);
+    legacy_in_order &= b.in_order;
+    legacy_allocs = b.nb_allocs;
+    t = run_ring(&b);
+    best_ring = FFMIN(best_ring, t);
+    ring_in_order &= b.in_order;
+    ring_allocs = b.nb_allocs;
+  }
+
+  report("legacy", b.packets, best_legacy, legacy_allocs, legacy_in_order);
+  report("ring", b.packets, best_ring, ring_allocs, ring_in_order);
+
+  av_free(b.payload);
+  return 0;
+}
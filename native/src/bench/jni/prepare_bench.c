@@ -0,0 +1,167 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Measures the wall time of a synchronous prepare() of local files, for
+ * the previous implementation (prepareAsync() followed by sleep(1) polling
+ * until the source is prepared) and for the current one (prepare() waking
+ * up as soon as the read thread signals the outcome).
+ *
+ * Then checks that a prepare() given up after PREPARE_TIMEOUT_MS stays
+ * given up: no MEDIA_PREPARED or MEDIA_ERROR may follow the TIMED_OUT.
+ *
+ * Usage: prepare_bench [runs] file...
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <ffmpeg_mediaplayer.h>
+
+#define DEFAULT_RUNS 5
+/* lets the MEDIA_PREPARED notification go out before the player is freed */
+#define NOTIFY_GRACE_US 100000
+/* short enough that no source is prepared in time */
+#define PREPARE_TIMEOUT_MS 1
+
+static int late_notifications;
+
+static void count_late_notification(void *clazz, int msg, int ext1, int ext2, int from_thread) {
+  if (msg == MEDIA_PREPARED || msg == MEDIA_ERROR) {
+    late_notifications++;
+  }
+}
+
+/* prepare() as it was */
+static int prepare_legacy(VideoState **ps) {
+  int ret;
+
+  ret = prepareAsync(ps);
+  if (ret != NO_ERROR) {
+    return ret;
+  }
+  while (!(*ps)->prepared) {
+    sleep(1);
+  }
+  return NO_ERROR;
+}
+
+static int64_t run(const char *filename, int (*prepare_fn)(VideoState **), int *latency) {
+  VideoState *is = create();
+  int64_t start, end;
+  int ret;
+
+  if (setDataSourceURI(&is, filename, NULL) != NO_ERROR) {
+    fprintf(stderr, "Could not set %s as data source\n", filename);
+    exit(1);
+  }
+
+  start = av_gettime_relative();
+  ret = prepare_fn(&is);
+  end = av_gettime_relative();
+  if (ret != NO_ERROR) {
+    fprintf(stderr, "Could not prepare %s: %d\n", filename, ret);
+    exit(1);
+  }
+
+  getParameter(&is, KEY_PARAMETER_PREPARE_LATENCY_MS, latency);
+  reset(&is);
+  usleep(NOTIFY_GRACE_US);
+  disconnect(&is);
+  return end - start;
+}
+
+/* exits when a prepare() that timed out is heard of again */
+static void check_timeout(const char *filename) {
+  VideoState *is = create();
+  int ret;
+
+  late_notifications = 0;
+  setListener(&is, NULL, count_late_notification);
+  setParameter(&is, KEY_PARAMETER_PREPARE_TIMEOUT_MS, PREPARE_TIMEOUT_MS);
+  if (setDataSourceURI(&is, filename, NULL) != NO_ERROR) {
+    fprintf(stderr, "Could not set %s as data source\n", filename);
+    exit(1);
+  }
+
+  ret = prepare(&is);
+  usleep(NOTIFY_GRACE_US);
+  if (ret == TIMED_OUT && late_notifications > 0) {
+    fprintf(stderr, "%s: %d notifications after prepare() timed out\n", filename,
+        late_notifications);
+    exit(1);
+  }
+  printf("%-40s timeout %s\n", filename, ret == TIMED_OUT ? "ok" : "not reached");
+
+  reset(&is);
+  disconnect(&is);
+}
+
+static void report(const char *filename, const char *variant, int64_t best, int latency) {
+  printf("%-40s %-7s best %9.3f ms  read thread ready after %6d ms\n",
+      filename, variant, best / 1000.0, latency);
+}
+
+/* a count, not a file name */
+static int is_number(const char *s) {
+  if (!*s) {
+    return 0;
+  }
+  for (; *s; s++) {
+    if (*s < '0' || *s > '9') {
+      return 0;
+    }
+  }
+  return 1;
+}
+
+int main(int argc, char *argv[]) {
+  int runs = DEFAULT_RUNS, first = 1;
+  int64_t t, best_legacy, best_cond;
+  int legacy_latency = 0, cond_latency = 0;
+  int i, j;
+
+  if (argc > 1 && is_number(argv[1])) {
+    runs = atoi(argv[1]);
+    first = 2;
+  }
+  if (argc <= first || runs <= 0) {
+    fprintf(stderr, "Usage: %s [runs] file...\n", argv[0]);
+    return 1;
+  }
+
+  av_register_all();
+
+  for (i = first; i < argc; i++) {
+    best_legacy = best_cond = INT64_MAX;
+    for (j = 0; j < runs; j++) {
+      t = run(argv[i], prepare_legacy, &legacy_latency);
+      best_legacy = FFMIN(best_legacy, t);
+      t = run(argv[i], prepare, &cond_latency);
+      best_cond = FFMIN(best_cond, t);
+    }
+    report(argv[i], "legacy", best_legacy, legacy_latency);
+    report(argv[i], "cond", best_cond, cond_latency);
+    check_timeout(argv[i]);
+  }
+  return 0;
+}
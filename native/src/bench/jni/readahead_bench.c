@@ -0,0 +1,150 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Plays a file from a local stand-in server over a slow link that hiccups
+ * once a second, reading at the media bit rate the way the demuxer does:
+ * straight from the connection, through the read-ahead ring topping up
+ * continuously, and through the ring in bursts. Reports the reads that
+ * came in late enough to be heard, and how often the connection went
+ * quiet long enough for the radio to sleep.
+ *
+ * Straight reads still have the socket buffers to lean on, as on a
+ * device.
+ *
+ * Usage: readahead_bench file [media kbps] [link kbps] [hiccup ms] [ring KB] [seconds]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <readahead_io.h>
+
+#include "http_stub.h"
+
+#define DEFAULT_MEDIA_KBPS 1000
+#define DEFAULT_LINK_KBPS 2000
+#define DEFAULT_HICCUP_MS 300
+#define DEFAULT_RING_KB 1024
+#define DEFAULT_SECONDS 20
+#define READ_SIZE 4096
+/* a read this late is a gap in playback */
+#define LATE_MS 50
+
+static HttpStub stub;
+static ReadAhead *readahead;
+
+static int interrupt_cb(void *opaque) {
+  return readahead && readahead_interrupted(readahead);
+}
+
+static void run(const char *name, const char *url, int mode, int media_kbps, int ring_kb,
+    int seconds) {
+  AVIOInterruptCB interrupt = { interrupt_cb, NULL };
+  AVIOContext *upstream = NULL, *pb;
+  uint8_t buf[READ_SIZE];
+  int64_t sent = http_stub_bytes_sent(&stub), start, due, now, read = 0, late_us = 0;
+  int requests = http_stub_requests(&stub), idle = http_stub_idle_periods(&stub);
+  int late = 0, stalls = 0, bursts = 0;
+
+  if (avio_open2(&upstream, url, AVIO_FLAG_READ, &interrupt, NULL) < 0) {
+    fprintf(stderr, "Could not open %s\n", url);
+    exit(1);
+  }
+  pb = upstream;
+  if (mode > 0) {
+    if (readahead_open(&readahead, upstream, ring_kb * 1024, mode == 2, &interrupt) < 0) {
+      fprintf(stderr, "Could not read %s ahead\n", url);
+      exit(1);
+    }
+    pb = readahead->pb;
+  }
+
+  start = av_gettime_relative();
+  while (read < (int64_t) seconds * media_kbps * 1000 / 8) {
+    due = start + read * 8 * 1000 / media_kbps;
+    now = av_gettime_relative();
+    if (due > now) {
+      av_usleep(due - now);
+    }
+    if (avio_read(pb, buf, sizeof(buf)) <= 0) {
+      break;
+    }
+    read += READ_SIZE;
+
+    now = av_gettime_relative();
+    if (now - due > LATE_MS * 1000) {
+      late++;
+      late_us += now - due;
+      /* playback picks up from here, as after a rebuffer */
+      start += now - due;
+    }
+  }
+
+  if (readahead) {
+    SDL_LockMutex(readahead->mutex);
+    stalls = readahead->stalls;
+    bursts = readahead->bursts;
+    SDL_UnlockMutex(readahead->mutex);
+    readahead_close(&readahead);
+  }
+  avio_closep(&upstream);
+
+  printf("%-11s %4d late reads %9.3f ms late  %4d ring stalls  %4d bursts  %4d idle periods"
+      "  %10lld bytes sent  %4d requests\n", name, late, late_us / 1000.0, stalls, bursts,
+      http_stub_idle_periods(&stub) - idle, (long long) (http_stub_bytes_sent(&stub) - sent),
+      http_stub_requests(&stub) - requests);
+}
+
+int main(int argc, char *argv[]) {
+  int media_kbps = argc > 2 ? atoi(argv[2]) : DEFAULT_MEDIA_KBPS;
+  int link_kbps = argc > 3 ? atoi(argv[3]) : DEFAULT_LINK_KBPS;
+  int hiccup_ms = argc > 4 ? atoi(argv[4]) : DEFAULT_HICCUP_MS;
+  int ring_kb = argc > 5 ? atoi(argv[5]) : DEFAULT_RING_KB;
+  int seconds = argc > 6 ? atoi(argv[6]) : DEFAULT_SECONDS;
+  char url[64];
+
+  if (argc < 2 || media_kbps <= 0 || link_kbps < 0 || hiccup_ms < 0 || ring_kb <= 0 ||
+      seconds <= 0) {
+    fprintf(stderr, "Usage: %s file [media kbps] [link kbps] [hiccup ms] [ring KB] [seconds]\n",
+        argv[0]);
+    return 1;
+  }
+
+  av_register_all();
+  avformat_network_init();
+
+  if (http_stub_start(&stub, argv[1], 0) < 0) {
+    fprintf(stderr, "Could not serve %s\n", argv[1]);
+    return 1;
+  }
+  http_stub_set_link(&stub, link_kbps, hiccup_ms);
+  snprintf(url, sizeof(url), "http://127.0.0.1:%d/media", stub.port);
+  printf("%s, %lld bytes, %d kbps media over a %d kbps link, %d ms hiccups, %d KB ring\n",
+      argv[1], (long long) stub.size, media_kbps, link_kbps, hiccup_ms, ring_kb);
+
+  run("direct", url, 0, media_kbps, ring_kb, seconds);
+  run("continuous", url, 1, media_kbps, ring_kb, seconds);
+  run("burst", url, 2, media_kbps, ring_kb, seconds);
+
+  http_stub_stop(&stub);
+  return 0;
+}
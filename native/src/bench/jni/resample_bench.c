@@ -0,0 +1,230 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Converts synthetic decoded frames to packed 16 bit samples the way the
+ * player does and reports the cost per frame, for the previous
+ * decode_frame_from_packet() (buffers allocated for every frame, then
+ * copied out) and for the current one (swr_convert() into a buffer that is
+ * only grown when needed).
+ *
+ * The source formats are the decoder outputs that go through the
+ * resampler: planar float (AAC, Vorbis, Opus, MP3), planar 16 bit and
+ * 32 bit (24 bit FLAC).
+ *
+ * Usage: resample_bench [frames] [runs]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <libavutil/channel_layout.h>
+#include <libavutil/frame.h>
+#include <libavutil/mem.h>
+#include <libavutil/opt.h>
+#include <libavutil/time.h>
+#include <libswresample/swresample.h>
+
+#define DEFAULT_FRAMES 20000
+#define DEFAULT_RUNS 5
+
+typedef struct SourceFormat {
+  const char *name;
+  enum AVSampleFormat sample_fmt;
+  int sample_rate;
+  int channels;
+  int nb_samples;
+} SourceFormat;
+
+static const SourceFormat formats[] = {
+  { "aac",    AV_SAMPLE_FMT_FLTP, 44100, 2, 1024 },
+  { "opus",   AV_SAMPLE_FMT_FLTP, 48000, 2, 960  },
+  { "vorbis", AV_SAMPLE_FMT_FLTP, 44100, 2, 2048 },
+  { "mp3",    AV_SAMPLE_FMT_FLTP, 44100, 2, 1152 },
+  { "s16p",   AV_SAMPLE_FMT_S16P, 44100, 2, 1152 },
+  { "flac24", AV_SAMPLE_FMT_S32,  44100, 2, 4096 },
+};
+
+typedef struct Bench {
+  struct SwrContext *swr;
+  AVFrame *frame;
+  uint8_t *out;
+  int out_size;
+  int nb_allocs;
+  /* what the player keeps between frames */
+  uint8_t *audio_buf1;
+  unsigned int audio_buf1_size;
+} Bench;
+
+static int bench_init(Bench *b, const SourceFormat *f) {
+  int64_t layout = av_get_default_channel_layout(f->channels);
+
+  memset(b, 0, sizeof(Bench));
+
+  b->swr = swr_alloc();
+  if (!b->swr) {
+    return -1;
+  }
+  av_opt_set_int(b->swr, "in_channel_layout", layout, 0);
+  av_opt_set_int(b->swr, "out_channel_layout", layout, 0);
+  av_opt_set_int(b->swr, "in_sample_rate", f->sample_rate, 0);
+  av_opt_set_int(b->swr, "out_sample_rate", f->sample_rate, 0);
+  av_opt_set_sample_fmt(b->swr, "in_sample_fmt", f->sample_fmt, 0);
+  av_opt_set_sample_fmt(b->swr, "out_sample_fmt", AV_SAMPLE_FMT_S16, 0);
+  if (swr_init(b->swr) < 0) {
+    return -1;
+  }
+
+  b->frame = av_frame_alloc();
+  if (!b->frame) {
+    return -1;
+  }
+  b->frame->format = f->sample_fmt;
+  b->frame->sample_rate = f->sample_rate;
+  b->frame->channels = f->channels;
+  b->frame->channel_layout = layout;
+  b->frame->nb_samples = f->nb_samples;
+  if (av_frame_get_buffer(b->frame, 0) < 0) {
+    return -1;
+  }
+  av_samples_set_silence(b->frame->extended_data, 0, f->nb_samples, f->channels, f->sample_fmt);
+
+  /* stands in for the PCM ring the output is copied into */
+  b->out_size = av_samples_get_buffer_size(NULL, f->channels, f->nb_samples + 256, AV_SAMPLE_FMT_S16, 1);
+  b->out = av_malloc(b->out_size);
+  return b->out ? 0 : -1;
+}
+
+static void bench_destroy(Bench *b) {
+  swr_free(&b->swr);
+  av_frame_free(&b->frame);
+  av_freep(&b->out);
+  av_freep(&b->audio_buf1);
+}
+
+/* decode_frame_from_packet() as it was */
+static int convert_legacy(Bench *b) {
+  AVFrame *frame = b->frame;
+  uint8_t **src_data = NULL, **dst_data = NULL;
+  int src_linesize, dst_linesize;
+  int dst_nb_samples, dst_bufsize;
+  int ret;
+
+  ret = av_samples_alloc_array_and_samples(&src_data, &src_linesize, frame->channels,
+      frame->nb_samples, frame->format, 0);
+  if (ret < 0) {
+    return -1;
+  }
+  b->nb_allocs += 2;
+
+  dst_nb_samples = av_rescale_rnd(frame->nb_samples, frame->sample_rate, frame->sample_rate, AV_ROUND_UP);
+  ret = av_samples_alloc_array_and_samples(&dst_data, &dst_linesize, frame->channels,
+      dst_nb_samples, AV_SAMPLE_FMT_S16, 0);
+  if (ret < 0) {
+    return -1;
+  }
+  b->nb_allocs += 2;
+
+  dst_nb_samples = av_rescale_rnd(swr_get_delay(b->swr, frame->sample_rate) + frame->nb_samples,
+      frame->sample_rate, frame->sample_rate, AV_ROUND_UP);
+  ret = swr_convert(b->swr, dst_data, dst_nb_samples, (const uint8_t **) frame->data, frame->nb_samples);
+  if (ret < 0) {
+    return -1;
+  }
+
+  dst_bufsize = av_samples_get_buffer_size(&dst_linesize, frame->channels, ret, AV_SAMPLE_FMT_S16, 1);
+  memcpy(b->out, dst_data[0], dst_bufsize);
+
+  av_freep(&src_data[0]);
+  av_freep(&src_data);
+  av_freep(&dst_data[0]);
+  av_freep(&dst_data);
+  return dst_bufsize;
+}
+
+/* decode_frame_from_packet() as it is now */
+static int convert_reuse(Bench *b) {
+  AVFrame *frame = b->frame;
+  unsigned int old_size = b->audio_buf1_size;
+  int out_count, out_size, ret;
+
+  out_count = swr_get_out_samples(b->swr, frame->nb_samples);
+  out_size = av_samples_get_buffer_size(NULL, frame->channels, out_count, AV_SAMPLE_FMT_S16, 1);
+  av_fast_malloc(&b->audio_buf1, &b->audio_buf1_size, out_size);
+  if (!b->audio_buf1) {
+    return -1;
+  }
+  if (b->audio_buf1_size != old_size) {
+    b->nb_allocs++;
+  }
+
+  ret = swr_convert(b->swr, &b->audio_buf1, out_count,
+      (const uint8_t **) frame->extended_data, frame->nb_samples);
+  return ret < 0 ? -1 : ret * frame->channels * 2;
+}
+
+static int64_t run(const SourceFormat *f, int frames, int (*convert)(Bench *), int *nb_allocs) {
+  Bench b;
+  int64_t start, end;
+  int i;
+
+  if (bench_init(&b, f) < 0) {
+    fprintf(stderr, "Could not set up %s\n", f->name);
+    exit(1);
+  }
+
+  start = av_gettime_relative();
+  for (i = 0; i < frames; i++) {
+    if (convert(&b) < 0) {
+      fprintf(stderr, "Error while converting %s\n", f->name);
+      exit(1);
+    }
+  }
+  end = av_gettime_relative();
+
+  *nb_allocs = b.nb_allocs;
+  bench_destroy(&b);
+  return end - start;
+}
+
+static void report(const char *name, const char *variant, int frames, int64_t best, int nb_allocs) {
+  printf("%-7s %-7s %8d frames  best %9.3f ms  %8.2f us/frame  %8d allocs\n",
+      name, variant, frames, best / 1000.0, (double) best / frames, nb_allocs);
+}
+
+int main(int argc, char *argv[]) {
+  int frames = argc > 1 ? atoi(argv[1]) : DEFAULT_FRAMES;
+  int runs = argc > 2 ? atoi(argv[2]) : DEFAULT_RUNS;
+  int64_t t, best_legacy, best_reuse;
+  int legacy_allocs = 0, reuse_allocs = 0;
+  int i, j;
+
+  for (i = 0; i < (int) (sizeof(formats) / sizeof(formats[0])); i++) {
+    best_legacy = best_reuse = INT64_MAX;
+    for (j = 0; j < runs; j++) {
+      t = run(&formats[i], frames, convert_legacy, &legacy_allocs);
+      best_legacy = FFMIN(best_legacy, t);
+      t = run(&formats[i], frames, convert_reuse, &reuse_allocs);
+      best_reuse = FFMIN(best_reuse, t);
+    }
+    report(formats[i].name, "legacy", frames, best_legacy, legacy_allocs);
+    report(formats[i].name, "reuse", frames, best_reuse, reuse_allocs);
+  }
+  return 0;
+}
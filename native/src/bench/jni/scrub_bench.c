@@ -0,0 +1,156 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Drags a virtual seek bar across a prepared file: seekTo() every frame
+ * interval from 10% to 90% of the duration, the way a seek bar reports a
+ * finger moving over it. Reports how long the last target took to
+ * complete after the drag stopped, how many seek completions the drag
+ * produced and how many targets the player coalesced.
+ *
+ * Without a surface no pictures are shown, so the scrub-to-display time
+ * (KEY_PARAMETER_SEEK_DISPLAY_LATENCY_MS) is only meaningful in an app.
+ *
+ * Usage: scrub_bench file [drags] [steps] [step interval ms]
+ */
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <ffmpeg_mediaplayer.h>
+
+#define DEFAULT_DRAGS 5
+#define DEFAULT_STEPS 60
+#define DEFAULT_STEP_MS 16
+/* a seek that takes longer than this is reported as lost */
+#define COMPLETE_TIMEOUT_US 10000000
+/* lets pending notifications go out before the player is freed */
+#define NOTIFY_GRACE_US 100000
+
+typedef struct Scrub {
+  pthread_mutex_t mutex;
+  int completions;
+  int last_target;
+  int64_t last_complete_time;
+} Scrub;
+
+static Scrub scrub;
+
+static void listener(void *clazz, int msg, int ext1, int ext2, int from_thread) {
+  if (msg == MEDIA_SEEK_COMPLETE) {
+    pthread_mutex_lock(&scrub.mutex);
+    scrub.completions++;
+    scrub.last_target = ext1;
+    scrub.last_complete_time = av_gettime_relative();
+    pthread_mutex_unlock(&scrub.mutex);
+  }
+}
+
+/* polls, the listener runs on SDL's timer thread */
+static int wait_complete(int target) {
+  int64_t deadline = av_gettime_relative() + COMPLETE_TIMEOUT_US;
+  int done;
+
+  pthread_mutex_lock(&scrub.mutex);
+  while (scrub.last_target != target && av_gettime_relative() < deadline) {
+    pthread_mutex_unlock(&scrub.mutex);
+    usleep(1000);
+    pthread_mutex_lock(&scrub.mutex);
+  }
+  done = scrub.last_target == target;
+  pthread_mutex_unlock(&scrub.mutex);
+  return done;
+}
+
+int main(int argc, char *argv[]) {
+  const char *filename;
+  int drags = argc > 2 ? atoi(argv[2]) : DEFAULT_DRAGS;
+  int steps = argc > 3 ? atoi(argv[3]) : DEFAULT_STEPS;
+  int step_ms = argc > 4 ? atoi(argv[4]) : DEFAULT_STEP_MS;
+  VideoState *is;
+  int64_t stop_time, best = INT64_MAX, worst = 0;
+  int duration = 0, target = 0, completions, coalesced = 0, seek_latency = 0, display_latency = 0;
+  int i, j;
+
+  if (argc < 2 || drags <= 0 || steps <= 0) {
+    fprintf(stderr, "Usage: %s file [drags] [steps] [step interval ms]\n", argv[0]);
+    return 1;
+  }
+  filename = argv[1];
+
+  av_register_all();
+  pthread_mutex_init(&scrub.mutex, NULL);
+
+  is = create();
+  setListener(&is, NULL, listener);
+  if (setDataSourceURI(&is, filename, NULL) != NO_ERROR || prepare(&is) != NO_ERROR) {
+    fprintf(stderr, "Could not prepare %s\n", filename);
+    return 1;
+  }
+  if (getDuration(&is, &duration) != NO_ERROR || duration <= 0) {
+    fprintf(stderr, "%s has no duration to scrub over\n", filename);
+    return 1;
+  }
+
+  for (i = 0; i < drags; i++) {
+    pthread_mutex_lock(&scrub.mutex);
+    scrub.completions = 0;
+    scrub.last_target = -1;
+    pthread_mutex_unlock(&scrub.mutex);
+
+    /* alternate directions so consecutive drags do not start where the last ended */
+    for (j = 0; j < steps; j++) {
+      int step = i % 2 ? steps - 1 - j : j;
+      target = (int) (duration * (0.1 + 0.8 * step / FFMAX(steps - 1, 1)));
+      seekTo(&is, target, SEEK_PREVIOUS_SYNC);
+      usleep(step_ms * 1000);
+    }
+    stop_time = av_gettime_relative();
+
+    if (!wait_complete(target)) {
+      fprintf(stderr, "Seek to %d ms did not complete\n", target);
+      return 1;
+    }
+
+    pthread_mutex_lock(&scrub.mutex);
+    completions = scrub.completions;
+    best = FFMIN(best, FFMAX(scrub.last_complete_time - stop_time, 0));
+    worst = FFMAX(worst, FFMAX(scrub.last_complete_time - stop_time, 0));
+    pthread_mutex_unlock(&scrub.mutex);
+
+    printf("drag %d  %d seeks  %d completions\n", i, steps, completions);
+  }
+
+  getParameter(&is, KEY_PARAMETER_SEEKS_COALESCED, &coalesced);
+  getParameter(&is, KEY_PARAMETER_SEEK_LATENCY_MS, &seek_latency);
+  getParameter(&is, KEY_PARAMETER_SEEK_DISPLAY_LATENCY_MS, &display_latency);
+  printf("%s: last target completed %.3f ms (best) %.3f ms (worst) after the drag stopped\n",
+      filename, best / 1000.0, worst / 1000.0);
+  printf("%d targets coalesced, last seek to first packet %d ms, to first picture %d ms\n",
+      coalesced, seek_latency, display_latency);
+
+  reset(&is);
+  usleep(NOTIFY_GRACE_US);
+  disconnect(&is);
+  return 0;
+}
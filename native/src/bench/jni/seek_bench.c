@@ -0,0 +1,127 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Compares SEEK_PREVIOUS_SYNC and SEEK_CLOSEST seeks on a playing video
+ * file. Seeks to targets spread from 10% to 90% of the duration and
+ * reports, per mode, how long it took until the video decoder was past
+ * the seek: for SEEK_PREVIOUS_SYNC once it took the flush, for
+ * SEEK_CLOSEST once it decoded the frame at the target. The frames decoded
+ * and discarded on the way show how the cost follows the GOP length, run
+ * it on files encoded with different key frame intervals.
+ *
+ * Usage: seek_bench file [seeks]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+#include <libavformat/avformat.h>
+#include <libavutil/time.h>
+
+#include <ffmpeg_mediaplayer.h>
+
+#define DEFAULT_SEEKS 20
+/* a seek that takes longer than this is reported as lost */
+#define CATCHUP_TIMEOUT_US 10000000
+/* lets pending notifications go out before the player is freed */
+#define NOTIFY_GRACE_US 100000
+
+/* polls until the video decoder is past the last seek */
+static int wait_caught_up(VideoState *is, int flushes) {
+  int64_t deadline = av_gettime_relative() + CATCHUP_TIMEOUT_US;
+
+  /* the read thread queues the flush first, then the decoder takes it */
+  while (is->video_flush_count == flushes ||
+      is->pictq_serial != is->video_flush_count ||
+      is->video_catchup != AV_NOPTS_VALUE) {
+    if (av_gettime_relative() >= deadline) {
+      return 0;
+    }
+    usleep(100);
+  }
+  return 1;
+}
+
+static void run(VideoState **ps, int duration, int seeks, int mode, const char *name) {
+  int64_t start, t, total = 0, worst = 0;
+  int64_t frames = 0;
+  int i, target, flushes, discarded;
+
+  for (i = 0; i < seeks; i++) {
+    target = (int) (duration * (0.1 + 0.8 * i / FFMAX(seeks - 1, 1)));
+    flushes = (*ps)->video_flush_count;
+    start = av_gettime_relative();
+    seekTo(ps, target, mode);
+    if (!wait_caught_up(*ps, flushes)) {
+      fprintf(stderr, "Seek to %d ms did not complete\n", target);
+      exit(1);
+    }
+    t = av_gettime_relative() - start;
+    total += t;
+    worst = FFMAX(worst, t);
+    if (mode == SEEK_CLOSEST) {
+      getParameter(ps, KEY_PARAMETER_SEEK_CATCHUP_FRAMES, &discarded);
+      frames += discarded;
+    }
+  }
+
+  printf("%-18s mean %9.3f ms  worst %9.3f ms  %.1f frames discarded per seek\n",
+      name, total / 1000.0 / seeks, worst / 1000.0, (double) frames / seeks);
+}
+
+int main(int argc, char *argv[]) {
+  const char *filename;
+  int seeks = argc > 2 ? atoi(argv[2]) : DEFAULT_SEEKS;
+  VideoState *is;
+  int duration = 0;
+
+  if (argc < 2 || seeks <= 0) {
+    fprintf(stderr, "Usage: %s file [seeks]\n", argv[0]);
+    return 1;
+  }
+  filename = argv[1];
+
+  av_register_all();
+
+  is = create();
+  if (setDataSourceURI(&is, filename, NULL) != NO_ERROR || prepare(&is) != NO_ERROR) {
+    fprintf(stderr, "Could not prepare %s\n", filename);
+    return 1;
+  }
+  if (is->videoStream < 0) {
+    fprintf(stderr, "%s has no video stream\n", filename);
+    return 1;
+  }
+  if (getDuration(&is, &duration) != NO_ERROR || duration <= 0) {
+    fprintf(stderr, "%s has no duration to seek in\n", filename);
+    return 1;
+  }
+  setVolume(&is, 0, 0);
+  start(&is);
+
+  printf("%s\n", filename);
+  run(&is, duration, seeks, SEEK_PREVIOUS_SYNC, "SEEK_PREVIOUS_SYNC");
+  run(&is, duration, seeks, SEEK_CLOSEST, "SEEK_CLOSEST");
+
+  reset(&is);
+  usleep(NOTIFY_GRACE_US);
+  disconnect(&is);
+  return 0;
+}
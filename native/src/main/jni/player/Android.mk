@@ -12,7 +12,13 @@ LOCAL_SRC_FILES := $(SDL_PATH)/src/main/android/SDL_android_main.c \
 	ffmpeg_mediaplayer.c \
 	audioplayer.c \
 	videoplayer.c \
-	ffmpeg_utils.c
+	ffmpeg_utils.c \
+	packet_queue.c \
+	pcm_ring.c \
+	seek_index.c \
+	cache_file.c \
+	cache_io.c \
+	readahead_io.c
 LOCAL_SHARED_LIBRARIES := SDL2 libswresample libswscale libavcodec libavformat libavutil
 LOCAL_EXPORT_C_INCLUDES := $(LOCAL_PATH)/../ffmpeg/ffmpeg/$(TARGET_ARCH_ABI)/include
 # for native audio
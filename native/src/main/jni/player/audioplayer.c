@@ -30,18 +30,15 @@ void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context)
 {
     VideoState *is = (VideoState *)context;
 
-    AudioPlayer *player = &is->audio_player;
+    AudioPlayer *player = is->audio_player;
 
-    if (player->buffer != NULL) {
-        free(player->buffer);
-        player->buffer = NULL;
-    }
-    
-    int len = 4096;
-    player->buffer = malloc(len);
-    
-    is->audio_callback(context, player->buffer, len);
-    enqueue(&is->audio_player, (int16_t *) player->buffer, len);
+    // the buffer that just finished playing is the next one to refill,
+    // the others are still queued
+    uint8_t *buffer = player->buffers + player->buffer_index * player->buffer_size;
+    player->buffer_index = (player->buffer_index + 1) % BUFFER_COUNT;
+
+    is->audio_callback(context, buffer, player->buffer_size);
+    enqueue(&is->audio_player, (int16_t *) buffer, player->buffer_size);
 }
 
 // create the engine and output mix objects
@@ -49,7 +46,9 @@ void createEngine(AudioPlayer **ps)
 {
     AudioPlayer *player = *ps;
 
-    player->buffer = NULL;
+    player->buffers = NULL;
+    player->buffer_size = 0;
+    player->buffer_index = 0;
     
     SLresult result;
 
@@ -83,10 +82,19 @@ void createEngine(AudioPlayer **ps)
 
 
 // create buffer queue audio player
-void createBufferQueueAudioPlayer(AudioPlayer **ps, void *state, int numChannels, int samplesPerSec, int streamType)
+int createBufferQueueAudioPlayer(AudioPlayer **ps, void *state, int numChannels, int samplesPerSec, int streamType, int framesPerBuffer)
 {
     AudioPlayer *player = *ps;
 
+    // 16 bit samples, rounded up to whole cache lines
+    player->buffer_size = (framesPerBuffer * numChannels * 2 + BUFFER_ALIGN - 1) & ~(BUFFER_ALIGN - 1);
+    player->buffer_index = 0;
+    if (posix_memalign((void **) &player->buffers, BUFFER_ALIGN, BUFFER_COUNT * player->buffer_size) != 0) {
+        player->buffers = NULL;
+        return -1;
+    }
+    memset(player->buffers, 0, BUFFER_COUNT * player->buffer_size);
+
     SLuint32 channelMask = 0;
     
     if (numChannels == 2) {
@@ -170,6 +178,8 @@ void createBufferQueueAudioPlayer(AudioPlayer **ps, void *state, int numChannels
     result = (*player->bqPlayerObject)->GetInterface(player->bqPlayerObject, SL_IID_VOLUME, &player->bqPlayerVolume);
     assert(SL_RESULT_SUCCESS == result);
     (void)result;
+
+    return 0;
 }
 
 
@@ -232,8 +242,14 @@ void setVolumeUriAudioPlayer(AudioPlayer **ps, int millibel)
 void queueAudioSamples(AudioPlayer **ps, void *state)
 {
     AudioPlayer *player = *ps;
+    int i;
 
-    bqPlayerCallback(NULL, state);
+    // fill and enqueue every buffer, from then on each completed buffer
+    // is refilled by the callback while the others keep the device busy
+    player->buffer_index = 0;
+    for (i = 0; i < BUFFER_COUNT; i++) {
+        bqPlayerCallback(player->bqPlayerBufferQueue, state);
+    }
 }
 
 int enqueue(AudioPlayer **ps, int16_t *data, int size) {
@@ -248,6 +264,19 @@ int enqueue(AudioPlayer **ps, int16_t *data, int size) {
     return 0;
 }
 
+// bytes handed to the device that have not been played yet
+int getQueuedAudioBytes(AudioPlayer **ps) {
+    AudioPlayer *player = *ps;
+
+    SLAndroidSimpleBufferQueueState state;
+    if (player->bqPlayerBufferQueue == NULL ||
+            (*player->bqPlayerBufferQueue)->GetState(player->bqPlayerBufferQueue, &state) != SL_RESULT_SUCCESS) {
+        return 0;
+    }
+
+    return state.count * player->buffer_size;
+}
+
 // shut down the native audio system
 void shutdown(AudioPlayer **ps)
 {
@@ -277,9 +306,9 @@ void shutdown(AudioPlayer **ps)
         player->engineEngine = NULL;
     }
     
-    // delete the audio buffer
-    if (player->buffer != NULL) {
-        free(player->buffer);
-        player->buffer = NULL;
+    // delete the audio buffers, the player object is gone so none is queued
+    if (player->buffers != NULL) {
+        free(player->buffers);
+        player->buffers = NULL;
     }
 }
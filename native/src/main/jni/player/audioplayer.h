@@ -34,8 +34,12 @@
 
 #include <ffmpeg_mediaplayer.h>
 #include <stdint.h>
+#include <stdlib.h>
 
-static const int BUFFER_COUNT = 2;
+/* buffers kept enqueued on the OpenSL ES buffer queue */
+#define BUFFER_COUNT 4
+/* each buffer starts on its own cache line */
+#define BUFFER_ALIGN 64
 
 static const SLEnvironmentalReverbSettings reverbSettings =
     SL_I3DL2_ENVIRONMENT_PRESET_STONECORRIDOR;
@@ -59,15 +63,21 @@ typedef struct AudioPlayer {
 	void (*bqPlayerCallback) (SLAndroidSimpleBufferQueueItf, void *);
     
     void (*audio_callback) (void *userdata, uint8_t *stream, int len);
-    uint8_t *buffer;
+
+    // BUFFER_COUNT buffers of buffer_size bytes, allocated once and
+    // handed to the buffer queue in turn
+    uint8_t *buffers;
+    int buffer_size;
+    int buffer_index;
 } AudioPlayer;
 
 void createEngine(AudioPlayer **ps);
-void createBufferQueueAudioPlayer(AudioPlayer **ps, void *state, int numChannels, int samplesPerSec, int streamType);
+int createBufferQueueAudioPlayer(AudioPlayer **ps, void *state, int numChannels, int samplesPerSec, int streamType, int framesPerBuffer);
 void setPlayingAudioPlayer(AudioPlayer **ps, int playstate);
 void setVolumeUriAudioPlayer(AudioPlayer **ps, int millibel);
 void queueAudioSamples(AudioPlayer **ps, void *state);
 int enqueue(AudioPlayer **ps, int16_t *data, int size);
+int getQueuedAudioBytes(AudioPlayer **ps);
 void shutdown(AudioPlayer **ps);
 
 #endif /*AUDIOPLAYER_H_*/
@@ -0,0 +1,100 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdio.h>
+#include <string.h>
+
+#include <libavutil/common.h>
+#include <libavutil/mem.h>
+
+#include <cache_file.h>
+
+/* FNV-1a, names the files of a URL */
+uint64_t cache_file_hash(const char *url) {
+  uint64_t hash = 0xcbf29ce484222325ULL;
+
+  while (*url) {
+    hash ^= (uint8_t) *url++;
+    hash *= 0x100000001b3ULL;
+  }
+  return hash;
+}
+
+/* makes room for count records of size bytes, doubling from min_capacity */
+int cache_file_grow(void **array, int *capacity, int count, int min_capacity, size_t size) {
+  void *grown;
+  int new_capacity = FFMAX(*capacity, min_capacity);
+
+  if (count <= *capacity) {
+    return 0;
+  }
+  while (new_capacity < count) {
+    new_capacity *= 2;
+  }
+  grown = av_realloc_array(*array, new_capacity, size);
+  if (!grown) {
+    return -1;
+  }
+  *array = grown;
+  *capacity = new_capacity;
+  return 0;
+}
+
+/*
+ * Reads what follows the header into records, which has room for
+ * nb_records. Fails if the file was written for another URL with the
+ * same hash.
+ */
+int cache_file_read(FILE *f, const char *url, int url_length, void *records, int nb_records,
+    size_t size) {
+  char file_url[CACHE_FILE_MAX_PATH];
+
+  if (url_length != strlen(url) || url_length > sizeof(file_url) || nb_records < 0 ||
+      fread(file_url, 1, url_length, f) != url_length ||
+      memcmp(file_url, url, url_length) ||
+      fread(records, size, nb_records, f) != nb_records) {
+    return -1;
+  }
+  return 0;
+}
+
+/* written next to path and renamed, a reader never sees half of it */
+int cache_file_write(const char *path, const void *header, size_t header_size, const char *url,
+    const void *records, int nb_records, size_t size) {
+  char tmp[CACHE_FILE_MAX_PATH + 4];
+  size_t url_length = strlen(url);
+  FILE *f;
+  int ok;
+
+  if (snprintf(tmp, sizeof(tmp), "%s.tmp", path) >= sizeof(tmp)) {
+    return -1;
+  }
+  f = fopen(tmp, "wb");
+  if (!f) {
+    return -1;
+  }
+  ok = fwrite(header, header_size, 1, f) == 1 &&
+      fwrite(url, 1, url_length, f) == url_length &&
+      fwrite(records, size, nb_records, f) == nb_records;
+  ok = fclose(f) == 0 && ok;
+  if (!ok || rename(tmp, path) != 0) {
+    remove(tmp);
+    return -1;
+  }
+  return 0;
+}
@@ -0,0 +1,44 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef CACHE_FILE_H_
+#define CACHE_FILE_H_
+
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+
+/* longest URL or path in a cache file */
+#define CACHE_FILE_MAX_PATH 512
+
+/*
+ * Files the player keeps about a source in a cache directory, the seek
+ * index and the map of the disk cache. Each is a header of its own, the
+ * URL without its terminator, then an array of records, in native byte
+ * order since they never leave the device. The header tells the URL
+ * length and the number of records.
+ */
+
+uint64_t cache_file_hash(const char *url);
+int cache_file_grow(void **array, int *capacity, int count, int min_capacity, size_t size);
+int cache_file_read(FILE *f, const char *url, int url_length, void *records, int nb_records,
+    size_t size);
+int cache_file_write(const char *path, const void *header, size_t header_size, const char *url,
+    const void *records, int nb_records, size_t size);
+
+#endif /* CACHE_FILE_H_ */
@@ -0,0 +1,477 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <libavutil/avstring.h>
+#include <libavutil/common.h>
+#include <libavutil/error.h>
+#include <libavutil/mem.h>
+
+#include <cache_io.h>
+#include <io_utils.h>
+
+/* header of the map file, followed by the URL and nb_ranges CacheRange records */
+#define CACHE_MAP_MAGIC MKTAG('F', 'M', 'C', 'M')
+#define CACHE_MAP_VERSION 1
+#define CACHE_MAP_SUFFIX ".map"
+#define CACHE_DATA_SUFFIX ".data"
+
+typedef struct CacheMapHeader {
+  uint32_t magic;
+  uint32_t version;
+  int64_t size;
+  int32_t url_length;
+  int32_t nb_ranges;
+} CacheMapHeader;
+
+typedef struct CacheFile {
+  char name[CACHE_IO_MAX_PATH];
+  int64_t mtime; /* nanoseconds, sources are often opened within a second */
+  int64_t bytes;
+} CacheFile;
+
+static int reserve(CacheIO *c, int count) {
+  return cache_file_grow((void **) &c->ranges, &c->capacity, count, 16, sizeof(CacheRange));
+}
+
+/* the range holding pos, NULL if it is not cached */
+static CacheRange *find_range(CacheIO *c, int64_t pos) {
+  int lo = 0, hi = c->nb_ranges - 1, mid;
+
+  while (lo <= hi) {
+    mid = (lo + hi) / 2;
+    if (pos < c->ranges[mid].start) {
+      hi = mid - 1;
+    } else if (pos >= c->ranges[mid].end) {
+      lo = mid + 1;
+    } else {
+      return &c->ranges[mid];
+    }
+  }
+  return NULL;
+}
+
+/* where the gap starting at pos ends */
+static int64_t gap_end(CacheIO *c, int64_t pos) {
+  int i;
+
+  for (i = 0; i < c->nb_ranges; i++) {
+    if (c->ranges[i].start > pos) {
+      return c->ranges[i].start;
+    }
+  }
+  return c->size;
+}
+
+/* merges [start, end) with the ranges it overlaps or touches */
+static int add_range(CacheIO *c, int64_t start, int64_t end) {
+  int first, last, i;
+
+  for (first = 0; first < c->nb_ranges && c->ranges[first].end < start; first++);
+  for (last = first; last < c->nb_ranges && c->ranges[last].start <= end; last++);
+
+  if (first == last) {
+    if (reserve(c, c->nb_ranges + 1) < 0) {
+      return -1;
+    }
+    memmove(&c->ranges[first + 1], &c->ranges[first],
+        (c->nb_ranges - first) * sizeof(CacheRange));
+    c->ranges[first].start = start;
+    c->ranges[first].end = end;
+    c->nb_ranges++;
+  } else {
+    start = FFMIN(start, c->ranges[first].start);
+    end = FFMAX(end, c->ranges[last - 1].end);
+    c->ranges[first].start = start;
+    c->ranges[first].end = end;
+    memmove(&c->ranges[first + 1], &c->ranges[last],
+        (c->nb_ranges - last) * sizeof(CacheRange));
+    c->nb_ranges -= last - first - 1;
+  }
+
+  c->cached_bytes = 0;
+  for (i = 0; i < c->nb_ranges; i++) {
+    c->cached_bytes += c->ranges[i].end - c->ranges[i].start;
+  }
+  c->dirty = 1;
+  return 0;
+}
+
+static int complete(CacheIO *c) {
+  return c->size > 0 && c->nb_ranges == 1 &&
+      c->ranges[0].start == 0 && c->ranges[0].end == c->size;
+}
+
+/* reads the map, leaves the ranges empty if it belongs to another URL */
+static void load_map(CacheIO *c) {
+  CacheMapHeader header;
+  FILE *f;
+  int i;
+
+  f = fopen(c->map_path, "rb");
+  if (!f) {
+    return;
+  }
+
+  if (fread(&header, sizeof(header), 1, f) != 1 ||
+      header.magic != CACHE_MAP_MAGIC ||
+      header.version != CACHE_MAP_VERSION ||
+      header.size <= 0 ||
+      header.nb_ranges < 0 ||
+      reserve(c, header.nb_ranges) < 0 ||
+      cache_file_read(f, c->url, header.url_length, c->ranges, header.nb_ranges,
+          sizeof(CacheRange)) < 0) {
+    fclose(f);
+    return;
+  }
+  fclose(f);
+
+  c->size = header.size;
+  c->nb_ranges = header.nb_ranges;
+  for (i = 0; i < c->nb_ranges; i++) {
+    c->cached_bytes += c->ranges[i].end - c->ranges[i].start;
+  }
+}
+
+static int save_map(CacheIO *c) {
+  CacheMapHeader header;
+
+  memset(&header, 0, sizeof(header));
+  header.magic = CACHE_MAP_MAGIC;
+  header.version = CACHE_MAP_VERSION;
+  header.size = c->size;
+  header.url_length = strlen(c->url);
+  header.nb_ranges = c->nb_ranges;
+
+  if (cache_file_write(c->map_path, &header, sizeof(header), c->url, c->ranges,
+      c->nb_ranges, sizeof(CacheRange)) < 0) {
+    return -1;
+  }
+  c->dirty = 0;
+  return 0;
+}
+
+/* forgets what is cached, the source changed */
+static void drop_ranges(CacheIO *c) {
+  c->nb_ranges = 0;
+  c->cached_bytes = 0;
+  c->dirty = 1;
+  /* on failure the old data only takes space until it is overwritten */
+  ftruncate(c->fd, 0);
+}
+
+static int open_upstream(CacheIO *c) {
+  AVDictionary *options = NULL;
+  int ret;
+
+  av_dict_copy(&options, c->options, 0);
+  ret = avio_open2(&c->upstream, c->url, AVIO_FLAG_READ, &c->interrupt, &options);
+  av_dict_free(&options);
+  return ret;
+}
+
+static int fetch(CacheIO *c, uint8_t *buf, int size) {
+  int64_t ret;
+  int n;
+
+  if (!c->upstream && (ret = open_upstream(c)) < 0) {
+    return ret;
+  }
+  io_clear_interrupt(c->upstream);
+  /* a range request when the demuxer moved, nothing when it reads on */
+  if (avio_tell(c->upstream) != c->pos &&
+      (ret = avio_seek(c->upstream, c->pos, SEEK_SET)) < 0) {
+    return ret;
+  }
+
+  n = avio_read_partial(c->upstream, buf, size);
+  if (n <= 0) {
+    return n == 0 ? AVERROR_EOF : n;
+  }
+  c->network_read_bytes += n;
+
+  /* past the budget the rest of the source is only passed through */
+  if (c->cached_bytes + n <= c->max_bytes &&
+      pwrite(c->fd, buf, n, c->pos) == n) {
+    add_range(c, c->pos, c->pos + n);
+  }
+  c->pos += n;
+  return n;
+}
+
+static int read_packet(void *opaque, uint8_t *buf, int size) {
+  CacheIO *c = opaque;
+  CacheRange *r;
+  ssize_t n;
+
+  if (c->pos >= c->size) {
+    return AVERROR_EOF;
+  }
+  size = FFMIN(size, c->size - c->pos);
+
+  r = find_range(c, c->pos);
+  if (!r) {
+    return fetch(c, buf, FFMIN(size, gap_end(c, c->pos) - c->pos));
+  }
+
+  n = pread(c->fd, buf, FFMIN(size, r->end - c->pos), c->pos);
+  if (n <= 0) {
+    /* the data file lost it, fetch it again */
+    drop_ranges(c);
+    return fetch(c, buf, size);
+  }
+  c->pos += n;
+  c->cache_read_bytes += n;
+  return n;
+}
+
+static int64_t seek_packet(void *opaque, int64_t offset, int whence) {
+  CacheIO *c = opaque;
+  int64_t pos;
+
+  switch (whence & ~AVSEEK_FORCE) {
+  case AVSEEK_SIZE:
+    return c->size;
+  case SEEK_SET:
+    pos = offset;
+    break;
+  case SEEK_CUR:
+    pos = c->pos + offset;
+    break;
+  case SEEK_END:
+    pos = c->size + offset;
+    break;
+  default:
+    return AVERROR(EINVAL);
+  }
+  if (pos < 0) {
+    return AVERROR(EINVAL);
+  }
+  /* upstream follows on the next miss */
+  c->pos = pos;
+  return pos;
+}
+
+static void free_cache(CacheIO *c) {
+  if (c->pb) {
+    if (c->pb != c->upstream) {
+      av_freep(&c->pb->buffer);
+      avio_context_free(&c->pb);
+    }
+    c->pb = NULL;
+  }
+  if (c->upstream) {
+    avio_close(c->upstream);
+    c->upstream = NULL;
+  }
+  if (c->fd >= 0) {
+    close(c->fd);
+    c->fd = -1;
+  }
+  av_dict_free(&c->options);
+  av_freep(&c->ranges);
+  av_free(c);
+}
+
+int cache_io_open(CacheIO **pc, const char *dir, int64_t max_bytes, const char *url,
+    const AVIOInterruptCB *interrupt, AVDictionary **options) {
+  CacheIO *c;
+  uint8_t *buffer;
+  int64_t size;
+  uint64_t hash = cache_file_hash(url);
+  int ret;
+
+  if (strlen(url) >= CACHE_IO_MAX_PATH || strlen(dir) >= CACHE_IO_MAX_PATH - 32) {
+    return AVERROR(EINVAL);
+  }
+
+  c = av_mallocz(sizeof(CacheIO));
+  if (!c) {
+    return AVERROR(ENOMEM);
+  }
+  c->fd = -1;
+  c->interrupt = *interrupt;
+  c->max_bytes = max_bytes;
+  av_strlcpy(c->url, url, sizeof(c->url));
+  av_strlcpy(c->dir, dir, sizeof(c->dir));
+  snprintf(c->map_path, sizeof(c->map_path), "%s/%016llx" CACHE_MAP_SUFFIX, dir,
+      (unsigned long long) hash);
+  snprintf(c->data_path, sizeof(c->data_path), "%s/%016llx" CACHE_DATA_SUFFIX, dir,
+      (unsigned long long) hash);
+  if (options) {
+    av_dict_copy(&c->options, *options, 0);
+  }
+
+  load_map(c);
+
+  /* a complete copy is played without a connection */
+  if (!complete(c)) {
+    ret = avio_open2(&c->upstream, url, AVIO_FLAG_READ, interrupt, options);
+    if (ret < 0) {
+      free_cache(c);
+      return ret;
+    }
+    size = avio_size(c->upstream);
+    if (size <= 0 || !(c->upstream->seekable & AVIO_SEEKABLE_NORMAL)) {
+      /* a live stream, nothing to cache */
+      c->pb = c->upstream;
+      *pc = c;
+      return 0;
+    }
+    if (size != c->size) {
+      c->nb_ranges = 0;
+      c->cached_bytes = 0;
+      c->size = size;
+    }
+  }
+
+  c->fd = open(c->data_path, O_RDWR | O_CREAT, 0600);
+  if (c->fd < 0) {
+    ret = AVERROR(errno);
+    free_cache(c);
+    return ret;
+  }
+  if (c->nb_ranges == 0) {
+    drop_ranges(c);
+  }
+
+  /* written now so the source counts as recently used while it plays */
+  save_map(c);
+  cache_io_trim(dir, max_bytes, c->map_path);
+
+  buffer = av_malloc(CACHE_IO_BUFFER_SIZE);
+  if (buffer) {
+    c->pb = avio_alloc_context(buffer, CACHE_IO_BUFFER_SIZE, 0, c, read_packet, NULL, seek_packet);
+  }
+  if (!c->pb) {
+    av_free(buffer);
+    free_cache(c);
+    return AVERROR(ENOMEM);
+  }
+  c->pb->seekable = AVIO_SEEKABLE_NORMAL;
+
+  *pc = c;
+  return 0;
+}
+
+void cache_io_close(CacheIO **pc) {
+  CacheIO *c = *pc;
+
+  if (!c) {
+    return;
+  }
+  if (c->fd >= 0) {
+    if (c->dirty) {
+      save_map(c);
+    }
+    cache_io_trim(c->dir, c->max_bytes, NULL);
+  }
+  free_cache(c);
+  *pc = NULL;
+}
+
+static int by_mtime(const void *a, const void *b) {
+  const CacheFile *fa = a, *fb = b;
+
+  return fa->mtime < fb->mtime ? -1 : fa->mtime > fb->mtime;
+}
+
+static void remove_source(const char *dir, const char *map_name) {
+  char path[CACHE_IO_MAX_PATH * 2];
+  size_t length = strlen(map_name) - strlen(CACHE_MAP_SUFFIX);
+
+  snprintf(path, sizeof(path), "%s/%s", dir, map_name);
+  remove(path);
+  snprintf(path, sizeof(path), "%s/%.*s" CACHE_DATA_SUFFIX, dir, (int) length, map_name);
+  remove(path);
+}
+
+/*
+ * Deletes the least recently opened sources until the directory holds no
+ * more than max_bytes. keep, a map path, is spared. Data files are
+ * measured by the blocks they use, they are sparse.
+ */
+int cache_io_trim(const char *dir, int64_t max_bytes, const char *keep) {
+  CacheFile *files = NULL, *grown;
+  int nb_files = 0, capacity = 0, i;
+  int64_t total = 0;
+  char path[CACHE_IO_MAX_PATH * 2];
+  const char *keep_name = keep ? strrchr(keep, '/') : NULL;
+  struct dirent *entry;
+  struct stat sb;
+  size_t length;
+  DIR *d;
+
+  keep_name = keep_name ? keep_name + 1 : keep;
+
+  d = opendir(dir);
+  if (!d) {
+    return AVERROR(errno);
+  }
+  while ((entry = readdir(d))) {
+    length = strlen(entry->d_name);
+    if (length <= strlen(CACHE_MAP_SUFFIX) || strcmp(entry->d_name +
+        length - strlen(CACHE_MAP_SUFFIX), CACHE_MAP_SUFFIX) ||
+        length >= CACHE_IO_MAX_PATH) {
+      continue;
+    }
+    snprintf(path, sizeof(path), "%s/%s", dir, entry->d_name);
+    if (stat(path, &sb) != 0) {
+      continue;
+    }
+    if (nb_files == capacity) {
+      capacity = FFMAX(capacity * 2, 16);
+      grown = av_realloc_array(files, capacity, sizeof(CacheFile));
+      if (!grown) {
+        break;
+      }
+      files = grown;
+    }
+    av_strlcpy(files[nb_files].name, entry->d_name, sizeof(files[nb_files].name));
+    files[nb_files].mtime = (int64_t) sb.st_mtim.tv_sec * 1000000000 + sb.st_mtim.tv_nsec;
+    files[nb_files].bytes = sb.st_size;
+    snprintf(path, sizeof(path), "%s/%.*s" CACHE_DATA_SUFFIX, dir,
+        (int) (length - strlen(CACHE_MAP_SUFFIX)), entry->d_name);
+    if (stat(path, &sb) == 0) {
+      files[nb_files].bytes += (int64_t) sb.st_blocks * 512;
+    }
+    total += files[nb_files].bytes;
+    nb_files++;
+  }
+  closedir(d);
+
+  qsort(files, nb_files, sizeof(CacheFile), by_mtime);
+  for (i = 0; i < nb_files && total > max_bytes; i++) {
+    if (keep_name && !strcmp(files[i].name, keep_name)) {
+      continue;
+    }
+    remove_source(dir, files[i].name);
+    total -= files[i].bytes;
+  }
+
+  av_free(files);
+  return 0;
+}
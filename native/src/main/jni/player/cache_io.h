@@ -0,0 +1,80 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef CACHE_IO_H_
+#define CACHE_IO_H_
+
+#include <stdint.h>
+
+#include <libavformat/avio.h>
+#include <libavutil/dict.h>
+
+#include <cache_file.h>
+
+#define CACHE_IO_MAX_PATH CACHE_FILE_MAX_PATH
+#define CACHE_IO_BUFFER_SIZE 32768
+
+typedef struct CacheRange {
+  int64_t start;
+  int64_t end; /* exclusive */
+} CacheRange;
+
+/*
+ * Read-through disk cache for a network source.
+ *
+ * The demuxer reads pb, a custom AVIOContext. Bytes already fetched are
+ * read back from a sparse data file in the cache directory, the gaps
+ * between them come from the upstream connection, which seeks with a
+ * range request when the position moved, and are written to the data
+ * file on the way. A map file next to it lists the cached ranges, the
+ * size and the URL. A source cached in full never opens the upstream.
+ *
+ * The cache directory is kept under max_bytes by deleting the least
+ * recently opened sources. Sources of unknown size or that cannot seek,
+ * live streams in particular, are not cached: pb is then the upstream.
+ *
+ * Used by one thread at a time, the counters may be read by any.
+ */
+typedef struct CacheIO {
+  AVIOContext *pb;
+  AVIOContext *upstream; /* NULL until a gap has to be fetched */
+  AVIOInterruptCB interrupt;
+  AVDictionary *options; /* protocol options, for opening upstream later */
+  char url[CACHE_IO_MAX_PATH];
+  char dir[CACHE_IO_MAX_PATH];
+  char map_path[CACHE_IO_MAX_PATH];
+  char data_path[CACHE_IO_MAX_PATH];
+  int fd; /* data file */
+  CacheRange *ranges; /* sorted, neither overlapping nor adjacent */
+  int nb_ranges;
+  int capacity;
+  int64_t size;
+  int64_t pos; /* next byte the demuxer reads */
+  int64_t max_bytes;
+  int64_t cached_bytes;
+  int dirty; /* ranges changed since the map was written */
+  int64_t cache_read_bytes; /* served from the data file */
+  int64_t network_read_bytes; /* fetched from upstream */
+} CacheIO;
+
+int cache_io_open(CacheIO **pc, const char *dir, int64_t max_bytes, const char *url,
+    const AVIOInterruptCB *interrupt, AVDictionary **options);
+void cache_io_close(CacheIO **pc);
+int cache_io_trim(const char *dir, int64_t max_bytes, const char *keep);
+
+#endif /* CACHE_IO_H_ */
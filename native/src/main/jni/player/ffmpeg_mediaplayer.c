@@ -17,104 +17,28 @@
  */
 
 //#include <android/log.h>
+#include <sys/stat.h>
+
 #include <ffmpeg_mediaplayer.h>
 
 static int one = 0;
 static int two = 0;
 
-void packet_queue_init(PacketQueue *q) {
-  memset(q, 0, sizeof(PacketQueue));
-  q->initialized = 1;
-  q->mutex = SDL_CreateMutex();
-  q->cond = SDL_CreateCond();
-}
-int packet_queue_put(VideoState *is, PacketQueue *q, AVPacket *pkt) {
-
-  AVPacketList *pkt1;
-  if(pkt != &is->flush_pkt && av_dup_packet(pkt) < 0) {
-    return -1;
-  }
-  pkt1 = av_malloc(sizeof(AVPacketList));
-  if (!pkt1)
-    return -1;
-  pkt1->pkt = *pkt;
-  pkt1->next = NULL;
-
-  SDL_LockMutex(q->mutex);
-
-  if (!q->last_pkt)
-    q->first_pkt = pkt1;
-  else
-    q->last_pkt->next = pkt1;
-  q->last_pkt = pkt1;
-  q->nb_packets++;
-  q->size += pkt1->pkt.size;
-  SDL_CondSignal(q->cond);
-
-  SDL_UnlockMutex(q->mutex);
-  return 0;
-}
-static int packet_queue_get(VideoState *is, PacketQueue *q, AVPacket *pkt, int block)
-{
-  AVPacketList *pkt1;
-  int ret;
-
-  SDL_LockMutex(q->mutex);
-
-  for(;;) {
-
-    if(is->quit) {
-      ret = -1;
-      break;
-    }
-
-    pkt1 = q->first_pkt;
-    if (pkt1) {
-      q->first_pkt = pkt1->next;
-      if (!q->first_pkt)
-	q->last_pkt = NULL;
-      q->nb_packets--;
-      q->size -= pkt1->pkt.size;
-      *pkt = pkt1->pkt;
-      av_free(pkt1);
-      ret = 1;
-      break;
-    } else if (!block) {
-      ret = 0;
-      break;
-    } else {
-      SDL_CondWait(q->cond, q->mutex);
-    }
-  }
-  SDL_UnlockMutex(q->mutex);
-  return ret;
-}
-static void packet_queue_flush(PacketQueue *q) {
-  AVPacketList *pkt, *pkt1;
-
-  SDL_LockMutex(q->mutex);
-  for(pkt = q->first_pkt; pkt != NULL; pkt = pkt1) {
-    pkt1 = pkt->next;
-    av_packet_unref(&pkt->pkt);
-    av_freep(&pkt);
-  }
-  q->last_pkt = NULL;
-  q->first_pkt = NULL;
-  q->nb_packets = 0;
-  q->size = 0;
-  SDL_UnlockMutex(q->mutex);
-}
 double get_audio_clock(VideoState *is) {
   double pts;
   int hw_buf_size, bytes_per_sec, n;
 
   pts = is->audio_clock; /* maintained in the audio thread */
-  hw_buf_size = is->audio_buf_size - is->audio_buf_index;
-  bytes_per_sec = 0;
-  n = is->audio_st->codec->channels * 2;
-  if(is->audio_st) {
-    bytes_per_sec = is->audio_st->codec->sample_rate * n;
+  if(!is->audio_st) {
+    return pts;
+  }
+  hw_buf_size = pcm_ring_count(&is->pcm_ring);
+  if(is->audio_player) {
+    /* decoded and already handed to the device, but not played yet */
+    hw_buf_size += getQueuedAudioBytes(&is->audio_player);
   }
+  n = is->audio_st->codec->channels * 2;
+  bytes_per_sec = is->audio_st->codec->sample_rate * n;
   if(bytes_per_sec) {
     pts -= (double)hw_buf_size / bytes_per_sec;
   }
@@ -138,23 +62,25 @@ double get_master_clock(VideoState *is) {
     return get_external_clock(is);
   }
 }
-/* Add or subtract samples to get a better sync, return new
-   audio buffer size */
-int synchronize_audio(VideoState *is, short *samples,
-		      int samples_size, double pts) {
-  int n;
+/*
+ * Returns how many samples the frame that was just decoded should be
+ * played as. The difference to nb_samples is absorbed by the resampler,
+ * at most SAMPLE_CORRECTION_PERCENT_MAX percent of the frame.
+ */
+int synchronize_audio(VideoState *is, int nb_samples) {
+  int wanted_nb_samples = nb_samples;
   double ref_clock;
 
-  n = 2 * is->audio_st->codec->channels;
-
-  if(is->av_sync_type != AV_SYNC_AUDIO_MASTER) {
+  /* with video as the master there has to be video to follow */
+  if(is->av_sync_type != AV_SYNC_AUDIO_MASTER &&
+     (is->av_sync_type != AV_SYNC_VIDEO_MASTER || is->video_st)) {
     double diff, avg_diff;
-    int wanted_size, min_size, max_size /*, nb_samples */;
+    int min_nb_samples, max_nb_samples;
 
     ref_clock = get_master_clock(is);
     diff = get_audio_clock(is) - ref_clock;
 
-    if(diff < AV_NOSYNC_THRESHOLD) {
+    if(fabs(diff) < AV_NOSYNC_THRESHOLD) {
       // accumulate the diffs
       is->audio_diff_cum = diff + is->audio_diff_avg_coef
 	* is->audio_diff_cum;
@@ -162,221 +88,384 @@ int synchronize_audio(VideoState *is, short *samples,
 	is->audio_diff_avg_count++;
       } else {
 	avg_diff = is->audio_diff_cum * (1.0 - is->audio_diff_avg_coef);
+	is->audio_drift = avg_diff;
 	if(fabs(avg_diff) >= is->audio_diff_threshold) {
-	  wanted_size = samples_size + ((int)(diff * is->audio_st->codec->sample_rate) * n);
-	  min_size = samples_size * ((100 - SAMPLE_CORRECTION_PERCENT_MAX) / 100);
-	  max_size = samples_size * ((100 + SAMPLE_CORRECTION_PERCENT_MAX) / 100);
-	  if(wanted_size < min_size) {
-	    wanted_size = min_size;
-	  } else if (wanted_size > max_size) {
-	    wanted_size = max_size;
-	  }
-	  if(wanted_size < samples_size) {
-	    /* remove samples */
-	    samples_size = wanted_size;
-	  } else if(wanted_size > samples_size) {
-	    uint8_t *samples_end, *q;
-	    int nb;
-
-	    /* add samples by copying final sample*/
-	    nb = (samples_size - wanted_size);
-	    samples_end = (uint8_t *)samples + samples_size - n;
-	    q = samples_end + n;
-	    while(nb > 0) {
-	      memcpy(q, samples_end, n);
-	      q += n;
-	      nb -= n;
-	    }
-	    samples_size = wanted_size;
-	  }
+	  /* ahead of the master means playing more samples to slow down */
+	  wanted_nb_samples = nb_samples + (int)(diff * is->audio_st->codec->sample_rate);
+	  min_nb_samples = nb_samples * (100 - SAMPLE_CORRECTION_PERCENT_MAX) / 100;
+	  max_nb_samples = nb_samples * (100 + SAMPLE_CORRECTION_PERCENT_MAX) / 100;
+	  wanted_nb_samples = av_clip(wanted_nb_samples, min_nb_samples, max_nb_samples);
 	}
       }
     } else {
       /* difference is TOO big; reset diff stuff */
       is->audio_diff_avg_count = 0;
       is->audio_diff_cum = 0;
+      is->audio_drift = 0;
     }
   }
-  return samples_size;
+
+  /* parts per million the frame is stretched (+) or squeezed (-) by */
+  is->audio_compensation = (int)((int64_t)(wanted_nb_samples - nb_samples) * 1000000 / FFMAX(nb_samples, 1));
+  return wanted_nb_samples;
 }
 
-int decode_frame_from_packet(VideoState *is, AVFrame decoded_frame)
+/*
+ * Converts a decoded frame to packed 16 bit samples. swr_convert() writes
+ * straight into audio_buf1, which only grows when a frame needs more room
+ * than any frame before it, so there is no allocation at steady state.
+ *
+ * When wanted_nb_samples differs from the frame size the resampler
+ * stretches or squeezes the frame to it, see synchronize_audio().
+ */
+int decode_frame_from_packet(VideoState *is, AVFrame *decoded_frame, int wanted_nb_samples)
 {
-	int64_t src_ch_layout, dst_ch_layout;
-	int src_rate, dst_rate;
-	uint8_t **src_data = NULL, **dst_data = NULL;
-	int src_nb_channels = 0, dst_nb_channels = 0;
-	int src_linesize, dst_linesize;
-	int src_nb_samples, dst_nb_samples, max_dst_nb_samples;
-	enum AVSampleFormat src_sample_fmt, dst_sample_fmt;
-	int dst_bufsize;
+	int out_count, out_size, nb_channels;
 	int ret;
 
-	src_nb_samples = decoded_frame.nb_samples;
-	src_linesize = (int) decoded_frame.linesize;
-	src_data = decoded_frame.data;
+	nb_channels = decoded_frame->channels;
 
-	if (decoded_frame.channel_layout == 0) {
-		decoded_frame.channel_layout = av_get_default_channel_layout(decoded_frame.channels);
+	if (wanted_nb_samples != decoded_frame->nb_samples) {
+		if (swr_set_compensation(is->sws_ctx_audio, wanted_nb_samples - decoded_frame->nb_samples,
+				wanted_nb_samples) < 0) {
+			fprintf(stderr, "swr_set_compensation() failed\n");
+			return -1;
+		}
 	}
 
-	src_rate = decoded_frame.sample_rate;
-	dst_rate = decoded_frame.sample_rate;
-	src_ch_layout = decoded_frame.channel_layout;
-	dst_ch_layout = decoded_frame.channel_layout;
-	src_sample_fmt = decoded_frame.format;
-	dst_sample_fmt = AV_SAMPLE_FMT_S16;
-
-	/* allocate source and destination samples buffers */
-	src_nb_channels = av_get_channel_layout_nb_channels(src_ch_layout);
-	ret = av_samples_alloc_array_and_samples(&src_data, &src_linesize, src_nb_channels, src_nb_samples, src_sample_fmt, 0);
-	if (ret < 0) {
-		fprintf(stderr, "Could not allocate source samples\n");
+	/* resampler delay plus this frame, with room for the compensation */
+	out_count = swr_get_out_samples(is->sws_ctx_audio, FFMAX(wanted_nb_samples, decoded_frame->nb_samples));
+	if (out_count < 0) {
+		fprintf(stderr, "Could not get output sample count\n");
 		return -1;
 	}
+	out_count += 256;
 
-	/* compute the number of converted samples: buffering is avoided
-	 * ensuring that the output buffer will contain at least all the
-	 * converted input samples */
-	max_dst_nb_samples = dst_nb_samples = av_rescale_rnd(src_nb_samples, dst_rate, src_rate, AV_ROUND_UP);
+	out_size = av_samples_get_buffer_size(NULL, nb_channels, out_count, AV_SAMPLE_FMT_S16, 1);
+	if (out_size < 0) {
+		fprintf(stderr, "Could not get sample buffer size\n");
+		return -1;
+	}
 
-	/* buffer is going to be directly written to a rawaudio file, no alignment */
-	dst_nb_channels = av_get_channel_layout_nb_channels(dst_ch_layout);
-	ret = av_samples_alloc_array_and_samples(&dst_data, &dst_linesize, dst_nb_channels, dst_nb_samples, dst_sample_fmt, 0);
-	if (ret < 0) {
+	av_fast_malloc(&is->audio_buf1, &is->audio_buf1_size, out_size);
+	if (!is->audio_buf1) {
 		fprintf(stderr, "Could not allocate destination samples\n");
 		return -1;
 	}
 
-	/* compute destination number of samples */
-	dst_nb_samples = av_rescale_rnd(swr_get_delay(is->sws_ctx_audio, src_rate) + src_nb_samples, dst_rate, src_rate, AV_ROUND_UP);
-
 	/* convert to destination format */
-	ret = swr_convert(is->sws_ctx_audio, dst_data, dst_nb_samples, (const uint8_t **)decoded_frame.data, src_nb_samples);
+	ret = swr_convert(is->sws_ctx_audio, &is->audio_buf1, out_count,
+			(const uint8_t **) decoded_frame->extended_data, decoded_frame->nb_samples);
 	if (ret < 0) {
 		fprintf(stderr, "Error while converting\n");
 		return -1;
 	}
 
-	dst_bufsize = av_samples_get_buffer_size(&dst_linesize, dst_nb_channels, ret, dst_sample_fmt, 1);
-	if (dst_bufsize < 0) {
-		fprintf(stderr, "Could not get sample buffer size\n");
-		return -1;
-	}
+	is->audio_buf = is->audio_buf1;
+	return ret * nb_channels * av_get_bytes_per_sample(AV_SAMPLE_FMT_S16);
+}
 
-	memcpy(is->audio_buf, dst_data[0], dst_bufsize);
+/* streams that are not open or only carry cover art never hold us back */
+static int stream_has_enough(AVStream *st, PacketQueue *q, int ms) {
+  return !st || !q->initialized ||
+      (st->disposition & AV_DISPOSITION_ATTACHED_PIC) ||
+      packet_queue_duration(q) >= (int64_t) ms * 1000;
+}
 
-	if (src_data) {
-		av_freep(&src_data[0]);
-	}
-	av_freep(&src_data);
+static int queues_above(VideoState *is, int ms, int bytes, int packets) {
+  if (packet_queue_size(&is->audioq) + packet_queue_size(&is->videoq) > bytes ||
+      packet_queue_nb_packets(&is->audioq) >= packets ||
+      packet_queue_nb_packets(&is->videoq) >= packets) {
+    return 1;
+  }
 
-	if (dst_data) {
-		av_freep(&dst_data[0]);
-	}
-	av_freep(&dst_data);
+  return stream_has_enough(is->audio_st, &is->audioq, ms) &&
+      stream_has_enough(is->video_st, &is->videoq, ms);
+}
+
+/*
+ * Reading pauses once every stream has max_buffer_ms of media queued, so
+ * the buffer depth follows the content bitrate. The byte and slot limits
+ * only catch streams whose packets carry no usable timing.
+ */
+static int queues_full(VideoState *is) {
+  return queues_above(is, FFMAX(is->params.max_buffer_ms, is->params.min_buffer_ms),
+      MAX_QUEUE_SIZE, PACKET_QUEUE_CAPACITY);
+}
+
+/* duration of the audio decoded but not yet handed to the output */
+static int64_t audio_decoded_duration(VideoState *is) {
+  int bytes_per_sec = is->audio_st->codec->sample_rate * is->audio_st->codec->channels * 2;
+
+  return bytes_per_sec > 0 ?
+      (int64_t) pcm_ring_count(&is->pcm_ring) * 1000000 / bytes_per_sec : 0;
+}
+
+/*
+ * Decides from the demux loop when the source counts as prepared: once
+ * every stream has prepare_buffer_ms decoded or queued, or, for video with
+ * PREPARE_POLICY_FIRST_FRAME, once its first picture can be shown.
+ */
+static int ready_to_prepare(VideoState *is) {
+  int64_t wanted = (int64_t) is->params.prepare_buffer_ms * 1000;
+
+  if (queues_full(is)) {
+    return 1;
+  }
+
+  if (is->audioStream >= 0 && !(is->audio_st->disposition & AV_DISPOSITION_ATTACHED_PIC) &&
+      packet_queue_duration(&is->audioq) + audio_decoded_duration(is) < wanted) {
+    return 0;
+  }
+
+  if (is->videoStream >= 0) {
+    if (is->params.prepare_policy == PREPARE_POLICY_FIRST_FRAME) {
+      return is->pictq_size > 0;
+    }
+    return stream_has_enough(is->video_st, &is->videoq, is->params.prepare_buffer_ms);
+  }
+
+  return 1;
+}
+
+/* reading resumes once a stream dropped below min_buffer_ms */
+static int queues_above_low_watermark(VideoState *is) {
+  return queues_above(is, is->params.min_buffer_ms,
+      MAX_QUEUE_SIZE / 2, PACKET_QUEUE_CAPACITY / 2);
+}
+
+static void wake_read_thread(VideoState *is) {
+  if (is->continue_read_mutex) {
+    SDL_LockMutex(is->continue_read_mutex);
+    SDL_CondSignal(is->continue_read_cond);
+    SDL_UnlockMutex(is->continue_read_mutex);
+  }
+}
+
+/*
+ * Ends a synchronous prepare(). Only the first outcome counts, reset()
+ * wakes the waiter without one. Returns 0 when an outcome was already
+ * recorded, a prepare() that timed out, which must not hear of this one.
+ */
+static int prepare_done(VideoState *is, int status) {
+  int recorded = 1;
+
+  if (is->prepare_mutex) {
+    SDL_LockMutex(is->prepare_mutex);
+    if (!is->prepare_done) {
+      is->prepare_status = status;
+      is->prepare_done = 1;
+    } else {
+      recorded = 0;
+    }
+    SDL_CondBroadcast(is->prepare_cond);
+    SDL_UnlockMutex(is->prepare_mutex);
+  }
+  return recorded;
+}
+
+static void wake_prepare_waiter(VideoState *is) {
+  if (is->prepare_mutex) {
+    SDL_LockMutex(is->prepare_mutex);
+    SDL_CondBroadcast(is->prepare_cond);
+    SDL_UnlockMutex(is->prepare_mutex);
+  }
+}
+
+/* timeout_ms of 0 waits until the source is prepared or fails */
+static int wait_prepared(VideoState *is, int timeout_ms) {
+  int64_t deadline = av_gettime_relative() + (int64_t) timeout_ms * 1000;
+  int64_t remaining;
+  int ret;
+
+  SDL_LockMutex(is->prepare_mutex);
+  while (!is->prepare_done && !is->quit) {
+    if (timeout_ms > 0) {
+      remaining = deadline - av_gettime_relative();
+      if (remaining <= 0) {
+        break;
+      }
+      SDL_CondWaitTimeout(is->prepare_cond, is->prepare_mutex, (Uint32) ((remaining + 999) / 1000));
+    } else {
+      SDL_CondWait(is->prepare_cond, is->prepare_mutex);
+    }
+  }
 
-	return dst_bufsize;
+  if (is->prepare_done) {
+    ret = is->prepare_status;
+  } else if (is->quit) {
+    ret = INVALID_OPERATION;
+  } else {
+    /* recorded so the read thread can no longer report its own outcome */
+    ret = TIMED_OUT;
+    is->prepare_status = ret;
+    is->prepare_done = 1;
+  }
+  SDL_UnlockMutex(is->prepare_mutex);
+  return ret;
+}
+
+/*
+ * Called by the decoders after taking a packet. The demuxer is only woken
+ * when it is parked and the queues drained below the low watermark.
+ */
+static void check_continue_read(VideoState *is) {
+  if (SDL_AtomicGet(&is->read_waiting) && !queues_above_low_watermark(is)) {
+    wake_read_thread(is);
+  }
+}
+
+/*
+ * Parks the demuxer until a decoder drains the queues, a seek or stop is
+ * requested, or timeout_ms passed (0 waits for a wake up only).
+ */
+static void wait_continue_read(VideoState *is, int timeout_ms) {
+  SDL_LockMutex(is->continue_read_mutex);
+  SDL_AtomicSet(&is->read_waiting, 1);
+  if (timeout_ms > 0) {
+    if (!is->quit && !is->seek_req) {
+      SDL_CondWaitTimeout(is->continue_read_cond, is->continue_read_mutex, timeout_ms);
+    }
+  } else {
+    while (!is->quit && !is->seek_req && queues_above_low_watermark(is)) {
+      SDL_CondWait(is->continue_read_cond, is->continue_read_mutex);
+    }
+  }
+  SDL_AtomicSet(&is->read_waiting, 0);
+  SDL_UnlockMutex(is->continue_read_mutex);
+  is->read_wakeups++;
 }
 
+/*
+ * Returns the size of the next decoded and converted chunk in audio_buf.
+ * Every frame the decoder holds is received before another packet is
+ * sent, an empty packet from the demuxer drains the decoder at the end of
+ * the stream.
+ */
 int audio_decode_frame(VideoState *is, double *pts_ptr) {
 
-  int len1, data_size = 0, n;
+  int ret, data_size, wanted_nb_samples, skip_samples, skip_bytes;
+  AVCodecContext *codecCtx = is->audio_st->codec;
+  AVFrame *frame = &is->audio_frame;
   AVPacket *pkt = &is->audio_pkt;
-  double pts;
 
   for(;;) {
-    while(is->audio_pkt_size > 0) {
-      int got_frame = 0;
-      len1 = avcodec_decode_audio4(is->audio_st->codec, &is->audio_frame, &got_frame, pkt);
-      if(len1 < 0) {
-	/* if error, skip frame */
-	is->audio_pkt_size = 0;
-	break;
+    ret = avcodec_receive_frame(codecCtx, frame);
+    if(ret >= 0) {
+      data_size = 0;
+
+      /* the clock runs on media time, whatever the compensation */
+      if(frame->best_effort_timestamp != AV_NOPTS_VALUE) {
+        is->audio_clock = av_q2d(is->audio_st->time_base)*frame->best_effort_timestamp;
+      }
+      is->audio_clock += (double)frame->nb_samples / (double)frame->sample_rate;
+
+      /* exact seek: frames that end before the target are not played */
+      skip_bytes = 0;
+      if(is->audio_catchup != AV_NOPTS_VALUE) {
+        double target = is->audio_catchup / (double) AV_TIME_BASE;
+        if(is->audio_clock <= target) {
+          continue;
+        }
+        skip_samples = (int) ((target - (is->audio_clock -
+            (double)frame->nb_samples / frame->sample_rate)) * frame->sample_rate);
+        skip_bytes = FFMAX(skip_samples, 0) * frame->channels * 2;
+        is->audio_catchup = AV_NOPTS_VALUE;
+      }
+
+      wanted_nb_samples = synchronize_audio(is, frame->nb_samples);
+
+      /* once compensating, the resampler holds samples back */
+      if (frame->format != AV_SAMPLE_FMT_S16 ||
+          wanted_nb_samples != frame->nb_samples ||
+          swr_get_delay(is->sws_ctx_audio, frame->sample_rate) > 0) {
+        data_size = decode_frame_from_packet(is, frame, wanted_nb_samples);
+      } else {
+        /* already in the output format, play it from the frame */
+        data_size = av_samples_get_buffer_size(NULL, frame->channels,
+            frame->nb_samples, frame->format, 1);
+        is->audio_buf = frame->data[0];
       }
-      if (got_frame)
-      {
-    	  if (is->audio_frame.format != AV_SAMPLE_FMT_S16) {
-    		  data_size = decode_frame_from_packet(is, is->audio_frame);
-    	  } else {
-            data_size =
-              av_samples_get_buffer_size
-              (
-                  NULL,
-                  is->audio_st->codec->channels,
-                  is->audio_frame.nb_samples,
-                  is->audio_st->codec->sample_fmt,
-                  1
-              );
-            memcpy(is->audio_buf, is->audio_frame.data[0], data_size);
-    	  }
+
+      if(skip_bytes > 0) {
+        /* the frame the target falls into starts playing at the target */
+        skip_bytes = FFMIN(skip_bytes, data_size);
+        is->audio_buf += skip_bytes;
+        data_size -= skip_bytes;
       }
-      is->audio_pkt_data += len1;
-      is->audio_pkt_size -= len1;
+
       if(data_size <= 0) {
 	/* No data yet, get more frames */
 	continue;
       }
-      pts = is->audio_clock;
-      *pts_ptr = pts;
-      n = 2 * is->audio_st->codec->channels;
-      is->audio_clock += (double)data_size /
-	(double)(n * is->audio_st->codec->sample_rate);
+      *pts_ptr = is->audio_clock;
 
       /* We have data, return it and come back for more later */
       return data_size;
+    } else if(ret == AVERROR_EOF) {
+      /* drained, get ready for whatever is queued after a seek */
+      avcodec_flush_buffers(codecCtx);
     }
-    if(pkt->data)
-      av_packet_unref(pkt);
 
     if(is->quit) {
       return -1;
     }
     /* next packet */
-    if(packet_queue_get(is, &is->audioq, pkt, 1) < 0) {
+    if(packet_queue_get(&is->audioq, pkt, 1) < 0) {
       return -1;
     }
+    check_continue_read(is);
     if(pkt->data == is->flush_pkt.data) {
-      avcodec_flush_buffers(is->audio_st->codec);
+      avcodec_flush_buffers(codecCtx);
+      pcm_ring_flush(&is->pcm_ring);
+      is->audio_catchup = is->seek_catchup_target;
       continue;
     }
-    is->audio_pkt_data = pkt->data;
-    is->audio_pkt_size = pkt->size;
-    /* if update, update the audio clock w/pts */
-    if(pkt->pts != AV_NOPTS_VALUE) {
-      is->audio_clock = av_q2d(is->audio_st->time_base)*pkt->pts;
+    /* an empty packet marks the end of the stream */
+    ret = avcodec_send_packet(codecCtx, pkt->data || pkt->size ? pkt : NULL);
+    av_packet_unref(pkt);
+    if(ret < 0 && ret != AVERROR_EOF) {
+      /* if error, skip packet */
+      continue;
+    }
+  }
+}
+
+/*
+ * Decodes and resamples ahead of the audio sink. Blocks when the PCM ring
+ * is full, so it runs at most PCM_RING_MS ahead of playback.
+ */
+int audio_thread(void *arg) {
+  VideoState *is = (VideoState *)arg;
+  int audio_size;
+  double pts;
+
+  for(;;) {
+    audio_size = audio_decode_frame(is, &pts);
+    if(audio_size < 0) {
+      // means we quit getting packets
+      break;
+    }
+    if(pcm_ring_write(&is->pcm_ring, is->audio_buf, audio_size) < 0) {
+      break;
     }
   }
+  return 0;
 }
 
+/*
+ * Runs on the audio sink's callback thread, it only copies decoded samples
+ * and never waits for the decoder. Whatever is missing is played as silence.
+ */
 void audio_callback(void *userdata, Uint8 *stream, int len) {
 
   VideoState *is = (VideoState *)userdata;
-  int len1, audio_size;
-  double pts;
+  int len1;
 
-  while(len > 0) {
-    if(is->audio_buf_index >= is->audio_buf_size) {
-      /* We have already sent all our data; get more */
-      audio_size = audio_decode_frame(is, &pts);
-      if(audio_size < 0) {
-	/* If error, output silence */
-	is->audio_buf_size = 1024;
-	memset(is->audio_buf, 0, is->audio_buf_size);
-      } else {
-	audio_size = synchronize_audio(is, (int16_t *)is->audio_buf,
-				       audio_size, pts);
-	is->audio_buf_size = audio_size;
-      }
-      is->audio_buf_index = 0;
-    }
-    len1 = is->audio_buf_size - is->audio_buf_index;
-    if(len1 > len)
-      len1 = len;
-    memcpy(stream, (uint8_t *)is->audio_buf + is->audio_buf_index, len1);
-    len -= len1;
-    stream += len1;
-    is->audio_buf_index += len1;
+  len1 = pcm_ring_read(&is->pcm_ring, stream, len);
+  if(len1 < len) {
+    memset(stream + len1, 0, len - len1);
+    is->audio_underruns++;
   }
 
   //notify_from_thread(is, MEDIA_BUFFERING_UPDATE, 0, 0);
@@ -404,7 +493,11 @@ void video_display(VideoState *is) {
   //int i;
 
   vp = &is->pictq[is->pictq_rindex];
-  if(vp->bmp) {
+  if(vp->frame) {
+    /* direct rendering, convert straight into the window buffer */
+    displayFrame(&is->video_player, is->sws_ctx, vp->frame, is->video_st->codec->width, is->video_st->codec->height);
+    av_frame_unref(vp->frame);
+  } else if(vp->bmp) {
     if(is->video_st->codec->sample_aspect_ratio.num == 0) {
       aspect_ratio = 0;
     } else {
@@ -431,7 +524,6 @@ void video_display(VideoState *is) {
     SDL_DisplayYUVOverlay(vp->bmp, &rect);*/
 
     displayBmp(&is->video_player, vp->bmp, is->video_st->codec, is->video_st->codec->width, is->video_st->codec->height);
-    free(vp->bmp->buffer);
   }
 }
 
@@ -502,11 +594,110 @@ void video_display(VideoState *is) {
 //	}
 //}
 
+/*
+ * The display thread sleeps on refresh_cond until a picture is queued, the
+ * next one is due, or it is told to seek, pause, resume or quit. Deadlines
+ * are absolute times on the monotonic clock.
+ */
+static int refresh_init(VideoState *is) {
+  pthread_condattr_t attr;
+
+  if (pthread_mutex_init(&is->refresh_mutex, NULL) != 0) {
+    return -1;
+  }
+
+  pthread_condattr_init(&attr);
+#if !defined(__ANDROID_API__) || __ANDROID_API__ >= 21
+  pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+#endif
+  if (pthread_cond_init(&is->refresh_cond, &attr) != 0) {
+    pthread_condattr_destroy(&attr);
+    pthread_mutex_destroy(&is->refresh_mutex);
+    return -1;
+  }
+  pthread_condattr_destroy(&attr);
+
+  is->refresh_initialized = 1;
+  return 0;
+}
+
+static void refresh_destroy(VideoState *is) {
+  if (is->refresh_initialized) {
+    pthread_cond_destroy(&is->refresh_cond);
+    pthread_mutex_destroy(&is->refresh_mutex);
+    is->refresh_initialized = 0;
+  }
+}
+
+static void wake_refresh_thread(VideoState *is) {
+  if (is->refresh_initialized) {
+    pthread_mutex_lock(&is->refresh_mutex);
+    is->refresh_signaled = 1;
+    pthread_cond_signal(&is->refresh_cond);
+    pthread_mutex_unlock(&is->refresh_mutex);
+  }
+}
+
+static void refresh_deadline(struct timespec *ts, double delay) {
+  int64_t nsec;
+
+  clock_gettime(CLOCK_MONOTONIC, ts);
+  nsec = ts->tv_nsec + (int64_t) (delay * 1000000000.0);
+  ts->tv_sec += nsec / 1000000000;
+  ts->tv_nsec = nsec % 1000000000;
+}
+
+static int deadline_passed(const struct timespec *deadline) {
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return now.tv_sec > deadline->tv_sec ||
+      (now.tv_sec == deadline->tv_sec && now.tv_nsec >= deadline->tv_nsec);
+}
+
+/* returns once woken up, or once the deadline passed (NULL for none) */
+static void wait_refresh(VideoState *is, const struct timespec *deadline) {
+  pthread_mutex_lock(&is->refresh_mutex);
+  while (!is->refresh_signaled && !is->quit) {
+    if (!deadline) {
+      pthread_cond_wait(&is->refresh_cond, &is->refresh_mutex);
+#if !defined(__ANDROID_API__) || __ANDROID_API__ >= 21
+    } else if (pthread_cond_timedwait(&is->refresh_cond, &is->refresh_mutex, deadline) == ETIMEDOUT) {
+#else
+    } else if (pthread_cond_timedwait_monotonic_np(&is->refresh_cond, &is->refresh_mutex, deadline) == ETIMEDOUT) {
+#endif
+      break;
+    }
+  }
+  is->refresh_signaled = 0;
+  pthread_mutex_unlock(&is->refresh_mutex);
+  is->refresh_wakeups++;
+}
+
+/* releases the picture at the read index and makes room for the decoder */
+static void pictq_next(VideoState *is) {
+  VideoPicture *vp = &is->pictq[is->pictq_rindex];
+
+  if(vp->frame) {
+    av_frame_unref(vp->frame);
+  }
+  if(++is->pictq_rindex == is->pictq_capacity) {
+    is->pictq_rindex = 0;
+  }
+  SDL_LockMutex(is->pictq_mutex);
+  is->pictq_size--;
+  SDL_CondSignal(is->pictq_cond);
+  SDL_UnlockMutex(is->pictq_mutex);
+}
+
 void video_refresh_timer(void *opaque) {
 	VideoState *is = (VideoState *)opaque;
 
 	VideoPicture *vp;
 	double actual_delay, delay, sync_threshold, ref_clock, diff;
+	struct timespec deadline;
+	int64_t pause_start;
+	int serial;
 
     for(;;) {
 	    if(is->quit) {
@@ -515,13 +706,29 @@ void video_refresh_timer(void *opaque) {
 
 	    if(is->video_st) {
 	        if(is->pictq_size == 0) {
-	          //schedule_refresh(is, 1);
-	          SDL_Delay(1);
+	          /* queue_picture() wakes us */
+	          wait_refresh(is, NULL);
+	          continue;
+	        } else if(is->paused || !is->player_started) {
+	          /* the first picture waits for start() */
+	          pause_start = av_gettime();
+	          while((is->paused || !is->player_started) && !is->quit) {
+	            wait_refresh(is, NULL);
+	          }
+	          /* the next picture is due as much later as we were paused */
+	          is->frame_timer += (av_gettime() - pause_start) / 1000000.0;
 	          continue;
 	        } else {
 	          vp = &is->pictq[is->pictq_rindex];
 
+	          if(vp->serial != is->pictq_serial) {
+	            /* decoded before the last seek, drop it */
+	            pictq_next(is);
+	            continue;
+	          }
+
 	          is->video_current_pts = vp->pts;
+	          is->video_current_serial = vp->serial;
 	          is->video_current_pts_time = av_gettime();
 
 	          delay = vp->pts - is->frame_last_pts; /* the pts from last time */
@@ -553,30 +760,40 @@ void video_refresh_timer(void *opaque) {
 	          is->frame_timer += delay;
 	          /* computer the REAL delay */
 	          actual_delay = is->frame_timer - (av_gettime() / 1000000.0);
+	          if(actual_delay < -is->frame_last_delay && is->pictq_size > 1) {
+	            /* over a frame late and the next one is ready, skip this one */
+	            is->frames_dropped_late++;
+	            pictq_next(is);
+	            continue;
+	          }
 	          if(actual_delay < 0.010) {
-	    	/* Really it should skip the picture instead */
 	    	actual_delay = 0.010;
 	          }
 	          //schedule_refresh(is, (int)(actual_delay * 1000 + 0.5));
 
 	          /* show the picture! */
 	          video_display(is);
+	          if(is->seek_display_start && vp->serial == is->seek_display_serial) {
+	            is->seek_display_latency = av_gettime_relative() - is->seek_display_start;
+	            is->seek_display_start = 0;
+	          }
 
 	          /* update queue for next picture! */
-	          if(++is->pictq_rindex == VIDEO_PICTURE_QUEUE_SIZE) {
-	    	is->pictq_rindex = 0;
+	          pictq_next(is);
+
+	          /* sleep until the next picture is due, a seek, pause or quit
+	             cuts it short */
+	          refresh_deadline(&deadline, actual_delay);
+	          serial = is->pictq_serial;
+	          while(!is->quit && !is->paused && serial == is->pictq_serial &&
+	                !deadline_passed(&deadline)) {
+	            wait_refresh(is, &deadline);
 	          }
-	          SDL_LockMutex(is->pictq_mutex);
-	          is->pictq_size--;
-	          SDL_CondSignal(is->pictq_cond);
-	          SDL_UnlockMutex(is->pictq_mutex);
-
-	          SDL_Delay((int)(actual_delay * 1000 + 0.5));
 	          continue;
 	        }
 	      } else {
-	        //schedule_refresh(is, 100);
-	        SDL_Delay(100);
+	        /* no video (yet), the first queued picture wakes us */
+	        wait_refresh(is, NULL);
 	        continue;
 	      }
     }
@@ -592,7 +809,7 @@ void alloc_picture(void *userdata) {
     // we already have one make another, bigger/smaller
 	destroyBmp(&is->video_player, vp->bmp);
   }
-  // Allocate a place to put our YUV image on that screen
+  // Allocate a place to put our RGBA image, it is reused until the size changes
   vp->bmp = createBmp(&is->video_player, is->video_st->codec->width, is->video_st->codec->height);
 
   vp->width = is->video_st->codec->width;
@@ -613,7 +830,7 @@ int queue_picture(VideoState *is, AVFrame *pFrame, double pts) {
 
   /* wait until we have space for a new pic */
   SDL_LockMutex(is->pictq_mutex);
-  while(is->pictq_size >= VIDEO_PICTURE_QUEUE_SIZE &&
+  while(is->pictq_size >= is->pictq_capacity &&
 	!is->quit) {
     SDL_CondWait(is->pictq_cond, is->pictq_mutex);
   }
@@ -625,6 +842,25 @@ int queue_picture(VideoState *is, AVFrame *pFrame, double pts) {
   // windex is set to 0 initially
   vp = &is->pictq[is->pictq_windex];
 
+  if(is->render_mode == VIDEO_RENDER_MODE_DIRECT) {
+    /* keep the decoded frame, it is converted into the window when shown */
+    if(!vp->frame && !(vp->frame = av_frame_alloc())) {
+      return -1;
+    }
+    av_frame_move_ref(vp->frame, pFrame);
+    vp->pts = pts;
+    vp->serial = is->pictq_serial;
+
+    if(++is->pictq_windex == is->pictq_capacity) {
+      is->pictq_windex = 0;
+    }
+    SDL_LockMutex(is->pictq_mutex);
+    is->pictq_size++;
+    SDL_UnlockMutex(is->pictq_mutex);
+    wake_refresh_thread(is);
+    return 0;
+  }
+
   /* allocate or resize the buffer! */
   if(!vp->bmp ||
      vp->width != is->video_st->codec->width ||
@@ -661,14 +897,18 @@ int queue_picture(VideoState *is, AVFrame *pFrame, double pts) {
     updateBmp(&is->video_player, is->sws_ctx, is->video_st->codec, vp->bmp, pFrame, is->video_st->codec->width, is->video_st->codec->height);
 
     vp->pts = pts;
+    vp->serial = is->pictq_serial;
 
     /* now we inform our display thread that we have a pic ready */
-    if(++is->pictq_windex == VIDEO_PICTURE_QUEUE_SIZE) {
+    if(++is->pictq_windex == is->pictq_capacity) {
       is->pictq_windex = 0;
     }
     SDL_LockMutex(is->pictq_mutex);
     is->pictq_size++;
     SDL_UnlockMutex(is->pictq_mutex);
+    wake_refresh_thread(is);
+  } else {
+    return -1;
   }
   return 0;
 }
@@ -692,65 +932,192 @@ double synchronize_video(VideoState *is, AVFrame *src_frame, double pts) {
   return pts;
 }
 
-uint64_t global_video_pkt_pts = AV_NOPTS_VALUE;
+/*
+ * A decoded frame is late if it is due over a frame ago. With audio or the
+ * wall clock as master the master clock says when, with video as master,
+ * the default, the display thread's schedule does: frame_timer is when the
+ * picture shown last was due. It is dropped before it is converted, once
+ * the picture shown last is from after the last seek.
+ */
+static int frame_is_late(VideoState *is, double pts) {
+  double diff;
+
+  if(!is->player_started || is->paused ||
+     is->video_current_serial != is->pictq_serial ||
+     packet_queue_nb_packets(&is->videoq) == 0) {
+    return 0;
+  }
+
+  if(is->av_sync_type == AV_SYNC_VIDEO_MASTER) {
+    diff = is->frame_timer + (pts - is->frame_last_pts) - av_gettime() / 1000000.0;
+  } else {
+    diff = pts - get_master_clock(is);
+  }
+  return fabs(diff) < AV_NOSYNC_THRESHOLD && diff + is->frame_last_delay < 0;
+}
+
+static void set_skip_level(VideoState *is, int level) {
+  AVCodecContext *codecCtx = is->video_st->codec;
+
+  codecCtx->skip_loop_filter = level >= 2 ? AVDISCARD_ALL :
+                               level >= 1 ? AVDISCARD_NONREF : AVDISCARD_DEFAULT;
+  codecCtx->skip_frame = level >= 3 ? AVDISCARD_NONREF : AVDISCARD_DEFAULT;
+  is->skip_level = level;
+}
 
-/* These are called whenever we allocate a frame
- * buffer. We use this to store the global_pts in
- * a frame at the time it is allocated.
+/* whether the frame ends before the exact seek target */
+static int frame_before_target(VideoState *is, AVFrame *frame, double pts) {
+  double duration = frame->pkt_duration > 0 ?
+      frame->pkt_duration * av_q2d(is->video_st->time_base) : 0;
+
+  return pts + duration <= is->video_catchup / (double) AV_TIME_BASE;
+}
+
+/*
+ * Whether the packet lies entirely before the exact seek target. Without
+ * a duration only packets well before it count, the next one may be the
+ * frame the target falls into.
  */
-int our_get_buffer(struct AVCodecContext *c, AVFrame *pic, int flags) {
-  int ret = avcodec_default_get_buffer2 (c, pic, flags);
-  uint64_t *pts = av_malloc(sizeof(uint64_t));
-  *pts = global_video_pkt_pts;
-  pic->opaque = pts;
-  return ret;
+static int packet_before_target(VideoState *is, AVPacket *pkt) {
+  int64_t pts, duration;
+
+  if(pkt->pts == AV_NOPTS_VALUE) {
+    return 0;
+  }
+  pts = av_rescale_q(pkt->pts, is->video_st->time_base, AV_TIME_BASE_Q);
+  duration = pkt->duration > 0 ?
+      av_rescale_q(pkt->duration, is->video_st->time_base, AV_TIME_BASE_Q) : CATCHUP_MARGIN;
+  return pts + duration <= is->video_catchup;
 }
 
+/*
+ * Called by the video decoder once per frame. Every LAG_CHECK_INTERVAL it
+ * raises the decoder's discard level by one if frames kept being dropped,
+ * and lowers it again once none were.
+ */
+static void update_skip_level(VideoState *is) {
+  int64_t now = av_gettime_relative();
+  int dropped, drops;
+
+  if(now - is->lag_check_time < LAG_CHECK_INTERVAL) {
+    return;
+  }
+
+  dropped = is->frames_dropped_early + is->frames_dropped_late;
+  drops = dropped - is->lag_check_drops;
+  is->lag_check_drops = dropped;
+  is->lag_check_time = now;
+
+  if(drops >= LAG_DROPS_PER_INTERVAL && is->skip_level < VIDEO_SKIP_LEVEL_MAX) {
+    set_skip_level(is, is->skip_level + 1);
+    notify_from_thread(is, MEDIA_INFO, MEDIA_INFO_VIDEO_TRACK_LAGGING, drops);
+  } else if(drops == 0 && is->skip_level > 0) {
+    set_skip_level(is, is->skip_level - 1);
+  }
+}
+
+/*
+ * Receives every frame the decoder holds before sending it another packet,
+ * so a frame threaded decoder always has work queued. An empty packet from
+ * the demuxer drains the decoder at the end of the stream.
+ */
 int video_thread(void *arg) {
   VideoState *is = (VideoState *)arg;
+  AVCodecContext *codecCtx = is->video_st->codec;
   AVPacket pkt1, *packet = &pkt1;
-  int frameFinished;
   AVFrame *pFrame;
   double pts;
+  int64_t decode_start;
+  int ret, packet_pending = 0;
 
   pFrame = av_frame_alloc();
 
   for(;;) {
-    if(packet_queue_get(is, &is->videoq, packet, 1) < 0) {
-      // means we quit getting packets
-      break;
-    }
-    if(packet->data == is->flush_pkt.data) {
-      avcodec_flush_buffers(is->video_st->codec);
-      continue;
-    }
-    pts = 0;
-
-    // Save global pts to be stored in pFrame in first call
-    global_video_pkt_pts = packet->pts;
-    // Decode video frame
-    avcodec_decode_video2(is->video_st->codec, pFrame, &frameFinished,
-				packet);
-    if(packet->dts == AV_NOPTS_VALUE
-       && pFrame->opaque && *(uint64_t*)pFrame->opaque != AV_NOPTS_VALUE) {
-      pts = *(uint64_t *)pFrame->opaque;
-    } else if(packet->dts != AV_NOPTS_VALUE) {
-      pts = packet->dts;
-    } else {
-      pts = 0;
-    }
-    pts *= av_q2d(is->video_st->time_base);
+    decode_start = av_gettime_relative();
+    ret = avcodec_receive_frame(codecCtx, pFrame);
+    is->video_decode_time += av_gettime_relative() - decode_start;
 
     // Did we get a video frame?
-    if(frameFinished) {
+    if(ret >= 0) {
+      is->frames_decoded++;
+
+      if(pFrame->best_effort_timestamp != AV_NOPTS_VALUE) {
+        pts = pFrame->best_effort_timestamp * av_q2d(is->video_st->time_base);
+      } else {
+        pts = 0;
+      }
+
       pts = synchronize_video(is, pFrame, pts);
-      if(queue_picture(is, pFrame, pts) < 0) {
+      if(is->video_catchup != AV_NOPTS_VALUE) {
+        if(frame_before_target(is, pFrame, pts)) {
+          /* exact seek: decoded for its references only, never converted */
+          is->catchup_frames++;
+          av_frame_unref(pFrame);
+          continue;
+        }
+        is->video_catchup = AV_NOPTS_VALUE;
+        set_skip_level(is, is->skip_level);
+      }
+      if(frame_is_late(is, pts)) {
+        is->frames_dropped_early++;
+      } else if(queue_picture(is, pFrame, pts) < 0) {
 	break;
       }
+      av_frame_unref(pFrame);
+      update_skip_level(is);
+      continue;
+    } else if(ret == AVERROR_EOF) {
+      /* drained, get ready for whatever is queued after a seek */
+      avcodec_flush_buffers(codecCtx);
     }
+
+    if(!packet_pending) {
+      if(packet_queue_get(&is->videoq, packet, 1) < 0) {
+        // means we quit getting packets
+        break;
+      }
+      check_continue_read(is);
+      if(packet->data == is->flush_pkt.data) {
+        avcodec_flush_buffers(codecCtx);
+        /* pictures still queued are dropped by the display thread */
+        is->pictq_serial++;
+        wake_refresh_thread(is);
+        is->video_catchup = is->seek_catchup_target;
+        if(is->video_catchup != AV_NOPTS_VALUE) {
+          is->catchup_frames = 0;
+        } else {
+          /* an exact seek replaced mid catch-up leaves skip_frame behind */
+          set_skip_level(is, is->skip_level);
+        }
+        continue;
+      }
+
+      if(is->video_catchup != AV_NOPTS_VALUE) {
+        /* frames nothing refers to are not even decoded until near the target */
+        codecCtx->skip_frame = packet_before_target(is, packet) ? AVDISCARD_NONREF :
+            is->skip_level >= 3 ? AVDISCARD_NONREF : AVDISCARD_DEFAULT;
+      }
+    }
+
+    // Decode video frame, an empty packet marks the end of the stream
+    decode_start = av_gettime_relative();
+    ret = avcodec_send_packet(codecCtx, packet->data || packet->size ? packet : NULL);
+    is->video_decode_time += av_gettime_relative() - decode_start;
+    if(ret == AVERROR(EAGAIN)) {
+      /* the decoder wants its frames taken first, the packet goes in after */
+      packet_pending = 1;
+      continue;
+    }
+    packet_pending = 0;
+    if(ret < 0 && ret != AVERROR_EOF) {
+      fprintf(stderr, "%s: error while decoding video: %s\n", is->filename, av_err2str(ret));
+    }
+    av_packet_unref(packet);
+  }
+  if(packet_pending) {
     av_packet_unref(packet);
   }
-  av_free(pFrame);
+  av_frame_free(&pFrame);
 
   two = 1;
   return 0;
@@ -776,8 +1143,11 @@ int stream_component_open(VideoState *is, int stream_index) {
 	AudioPlayer *player = malloc(sizeof(AudioPlayer));
     is->audio_player = player;
     createEngine(&is->audio_player);
-    createBufferQueueAudioPlayer(&is->audio_player, is, codecCtx->channels, codecCtx->sample_rate, is->stream_type);
-    //is->audio_hw_buf_size = 4096;
+    if (createBufferQueueAudioPlayer(&is->audio_player, is, codecCtx->channels, codecCtx->sample_rate,
+        is->stream_type, is->params.audio_frames_per_buffer) < 0) {
+      fprintf(stderr, "Could not allocate audio output buffers\n");
+      return -1;
+    }
   } else if (codecCtx->codec_type == AVMEDIA_TYPE_VIDEO) {
 	// Set video settings from codec info
 	VideoPlayer *player = malloc(sizeof(VideoPlayer));
@@ -785,6 +1155,22 @@ int stream_component_open(VideoState *is, int stream_index) {
 	createVideoEngine(&is->video_player);
 	createScreen(&is->video_player, is->native_window, 0, 0);
   }
+  if (codecCtx->codec_type == AVMEDIA_TYPE_VIDEO) {
+    /* 0 lets the decoder pick one thread per core */
+    codecCtx->thread_count = is->params.decoder_thread_count;
+    switch (is->params.decoder_thread_type) {
+    case DECODER_THREAD_TYPE_FRAME:
+      codecCtx->thread_type = FF_THREAD_FRAME;
+      break;
+    case DECODER_THREAD_TYPE_SLICE:
+      codecCtx->thread_type = FF_THREAD_SLICE;
+      break;
+    default:
+      codecCtx->thread_type = FF_THREAD_FRAME | FF_THREAD_SLICE;
+      break;
+    }
+  }
+
   codec = avcodec_find_decoder(codecCtx->codec_id);
   if(!codec || (avcodec_open2(codecCtx, codec, &optionsDict) < 0)) {
     fprintf(stderr, "Unsupported codec!\n");
@@ -802,7 +1188,7 @@ int stream_component_open(VideoState *is, int stream_index) {
     is->audio_diff_avg_coef = exp(log(0.01 / AUDIO_DIFF_AVG_NB));
     is->audio_diff_avg_count = 0;
     /* Correct audio only if larger error than this */
-    is->audio_diff_threshold = 2.0 * SDL_AUDIO_BUFFER_SIZE / codecCtx->sample_rate;
+    is->audio_diff_threshold = 2.0 * is->params.audio_frames_per_buffer / codecCtx->sample_rate;
 
 	is->sws_ctx_audio = swr_alloc();
 	if (!is->sws_ctx_audio) {
@@ -830,7 +1216,20 @@ int stream_component_open(VideoState *is, int stream_index) {
 	}
 
     memset(&is->audio_pkt, 0, sizeof(is->audio_pkt));
-    packet_queue_init(&is->audioq);
+    if (packet_queue_init(&is->audioq) < 0) {
+      fprintf(stderr, "Could not allocate audio packet queue\n");
+      return -1;
+    }
+    is->audioq.time_base = is->audio_st->time_base;
+
+    if (pcm_ring_init(&is->pcm_ring, codecCtx->sample_rate * codecCtx->channels * 2 * PCM_RING_MS / 1000) < 0) {
+      fprintf(stderr, "Could not allocate audio sample buffer\n");
+      return -1;
+    }
+
+    is->audio_tid = malloc(sizeof(*(is->audio_tid)));
+
+    pthread_create(is->audio_tid, NULL, (void *) &audio_thread, is);
     break;
   case AVMEDIA_TYPE_VIDEO:
     is->videoStream = stream_index;
@@ -840,16 +1239,31 @@ int stream_component_open(VideoState *is, int stream_index) {
     is->frame_last_delay = 40e-3;
     is->video_current_pts_time = av_gettime();
 
-    packet_queue_init(&is->videoq);
+    if (packet_queue_init(&is->videoq) < 0) {
+      fprintf(stderr, "Could not allocate video packet queue\n");
+      return -1;
+    }
+    is->videoq.time_base = is->video_st->time_base;
 
     createScreen(&is->video_player, is->native_window, is->video_st->codec->width, is->video_st->codec->height);
+    is->sws_ctx = createScaler(&is->video_player, is->video_st->codec);
+    is->pictq_capacity = is->params.video_picture_queue_size;
+    is->render_mode = is->params.video_render_mode;
+
+    /* audio only sources never get here, nor pay for the display thread */
+    is->pictq_mutex = SDL_CreateMutex();
+    is->pictq_cond = SDL_CreateCond();
+    if (refresh_init(is) < 0) {
+      fprintf(stderr, "Could not create the video refresh condition\n");
+      return -1;
+    }
+
+    is->video_refresh_tid = malloc(sizeof(*(is->video_refresh_tid)));
+    pthread_create(is->video_refresh_tid, NULL, (void *) &video_refresh_timer, is);
 
     is->video_tid = malloc(sizeof(*(is->video_tid)));
 
     pthread_create(is->video_tid, NULL, (void *) &video_thread, is);
-    is->sws_ctx = createScaler(&is->video_player, is->video_st->codec);
-
-    codecCtx->get_buffer2 = our_get_buffer;
 
     break;
   default:
@@ -862,15 +1276,235 @@ int stream_component_open(VideoState *is, int stream_index) {
 int decode_interrupt_cb(void *opaque) {
   VideoState *is = (VideoState *)opaque;
 
-  return (is && is->quit);
+  /* a seek still blocked in I/O is given up once a newer one is requested */
+  return (is && (is->quit ||
+      (is->seeking && is->seek_serial != is->seek_request_serial)));
 }
+/*
+ * Bounds the probing of the input according to the parameters, limited is
+ * set when any bound applies.
+ */
+static void apply_probe_limits(VideoState *is, AVFormatContext *ic, int *limited) {
+  PlayerParameters *params = &is->params;
+  int probe_size = params->probe_size;
+  int analyze_duration_ms = params->analyze_duration_ms;
+  int fps_probe_size = params->fps_probe_size;
+
+  if (params->fast_start) {
+    probe_size = probe_size ? probe_size : FAST_START_PROBE_SIZE;
+    analyze_duration_ms = analyze_duration_ms ? analyze_duration_ms : FAST_START_ANALYZE_DURATION_MS;
+    fps_probe_size = fps_probe_size ? fps_probe_size : FAST_START_FPS_PROBE_SIZE;
+  }
+
+  if (probe_size > 0) {
+    ic->probesize = probe_size;
+  }
+  if (analyze_duration_ms > 0) {
+    ic->max_analyze_duration = (int64_t) analyze_duration_ms * 1000;
+  }
+  if (fps_probe_size > 0) {
+    ic->fps_probe_size = fps_probe_size;
+  }
+  *limited = probe_size > 0 || analyze_duration_ms > 0 || fps_probe_size > 0;
+}
+
+/* whether the decoders and outputs can be set up from what was probed */
+static int stream_info_complete(AVFormatContext *ic) {
+  AVCodecParameters *par;
+  int i;
+
+  for (i = 0; i < ic->nb_streams; i++) {
+    par = ic->streams[i]->codecpar;
+    switch (par->codec_type) {
+    case AVMEDIA_TYPE_AUDIO:
+      if (par->codec_id == AV_CODEC_ID_NONE || par->format < 0 ||
+          par->sample_rate <= 0 || par->channels <= 0) {
+        return 0;
+      }
+      break;
+    case AVMEDIA_TYPE_VIDEO:
+      if (par->codec_id == AV_CODEC_ID_NONE || par->format < 0 ||
+          par->width <= 0 || par->height <= 0) {
+        return 0;
+      }
+      break;
+    default:
+      break;
+    }
+  }
+  return 1;
+}
+
+/* whether the demuxer read an index from the header, as MP4 and Matroska do */
+static int has_own_index(AVFormatContext *ic) {
+  int i;
+
+  for (i = 0; i < ic->nb_streams; i++) {
+    if (ic->streams[i]->nb_index_entries > 0) {
+      return 1;
+    }
+  }
+  return 0;
+}
+
+/*
+ * For the source under a read-ahead ring: seeks of the demuxer do not
+ * concern it, those of the ring do.
+ */
+static int io_interrupt_cb(void *opaque) {
+  VideoState *is = (VideoState *)opaque;
+
+  return is->quit || (is->readahead && readahead_interrupted(is->readahead));
+}
+
+static int is_http(const char *url) {
+  return av_strstart(url, "http:", NULL) || av_strstart(url, "https:", NULL);
+}
+
+/* closes what the demuxer reads, from the top */
+static void close_io(VideoState *is) {
+  if (is->readahead) {
+    AVIOContext *upstream = is->readahead->upstream;
+
+    readahead_close(&is->readahead);
+    is->io_context = upstream;
+  }
+  if (is->cache_io) {
+    /* io_context belongs to it */
+    cache_io_close(&is->cache_io);
+  } else if (is->io_context) {
+    avio_close(is->io_context);
+  }
+  is->io_context = NULL;
+}
+
+static int index_interrupt_cb(void *opaque) {
+  VideoState *is = (VideoState *)opaque;
+
+  return is->quit;
+}
+
+/*
+ * Demuxes a local source from start to end through a context of its own,
+ * without decoding, so its index is complete long before playback would
+ * get there. Network sources are only indexed as they play, scanning them
+ * would download all of them.
+ */
+static void *index_scan_thread(void *arg) {
+  VideoState *is = (VideoState *)arg;
+  SeekIndex *scan = &is->index_scan;
+  AVFormatContext *ic = avformat_alloc_context();
+  AVPacket pkt;
+  int ret = AVERROR(ENOMEM);
+
+  if (!ic) {
+    return NULL;
+  }
+  ic->interrupt_callback.callback = index_interrupt_cb;
+  ic->interrupt_callback.opaque = is;
+  if (avformat_open_input(&ic, is->filename, is->index_format, NULL) != 0) {
+    return NULL;
+  }
+
+  while (!is->quit && (ret = av_read_frame(ic, &pkt)) >= 0) {
+    if (pkt.stream_index == scan->stream_index) {
+      seek_index_add(scan, &pkt);
+    }
+    av_packet_unref(&pkt);
+  }
+
+  /* streams are numbered in the order the demuxer finds them, check it is the same one */
+  if (ret == AVERROR_EOF && scan->stream_index < ic->nb_streams &&
+      !av_cmp_q(ic->streams[scan->stream_index]->time_base, scan->time_base)) {
+    seek_index_finish(scan);
+    if (scan->complete) {
+      SDL_AtomicSet(&is->index_scanned, 1);
+      wake_read_thread(is);
+    }
+  }
+  avformat_close_input(&ic);
+  return NULL;
+}
+
+/* replaces what playback indexed so far by the scan, called by the read thread */
+static void adopt_index_scan(VideoState *is) {
+  AVStream *st = is->pFormatCtx->streams[is->index_scan.stream_index];
+
+  seek_index_close(&is->seek_index);
+  is->seek_index = is->index_scan;
+  memset(&is->index_scan, 0, sizeof(is->index_scan));
+  seek_index_apply(&is->seek_index, st);
+  seek_index_save(&is->seek_index);
+}
+
+/*
+ * Starts indexing the video stream, or the audio stream without one, of a
+ * seekable source with no index of its own, with what an earlier play of
+ * it left in the cache directory. Local files are matched by size and
+ * modification time, others by size alone.
+ */
+static void open_seek_index(VideoState *is) {
+  AVFormatContext *ic = is->pFormatCtx;
+  AVStream *st = is->video_st ? is->video_st : is->audio_st;
+  const char *path = NULL;
+  struct stat sb;
+  int64_t mtime = 0;
+
+  if (!(ic->pb->seekable & AVIO_SEEKABLE_NORMAL) ||
+      (ic->iformat->flags & AVFMT_NO_BYTE_SEEK)) {
+    return;
+  }
+
+  if (av_strstart(is->filename, "file:", &path) || is->filename[0] == '/') {
+    if (stat(path ? path : is->filename, &sb) == 0) {
+      mtime = sb.st_mtime;
+    }
+  }
+
+  if (seek_index_open(&is->seek_index, is->params.seek_index_dir, is->filename,
+      avio_size(ic->pb), mtime, st, is->video_st ? 0 : SEEK_INDEX_AUDIO_INTERVAL) < 0) {
+    return;
+  }
+  seek_index_apply(&is->seek_index, st);
+  is->seek_indexing = 1;
+
+  if (is->seek_index.complete || !(path || is->filename[0] == '/')) {
+    return;
+  }
+  if (seek_index_open(&is->index_scan, NULL, is->filename, is->seek_index.size,
+      mtime, st, is->video_st ? 0 : SEEK_INDEX_AUDIO_INTERVAL) < 0) {
+    return;
+  }
+  /* saved where the index of playback would have been */
+  av_strlcpy(is->index_scan.path, is->seek_index.path, sizeof(is->index_scan.path));
+  is->index_format = ic->iformat;
+  is->index_tid = malloc(sizeof(*(is->index_tid)));
+  if (is->index_tid) {
+    pthread_create(is->index_tid, NULL, index_scan_thread, is);
+  }
+}
+
+static void set_prepared(VideoState *is) {
+  if (is->audio_player) {
+    queueAudioSamples(&is->audio_player, is);
+  }
+
+  is->prepare_latency = av_gettime_relative() - is->prepare_start_time;
+  is->prepared = 1;
+  if (prepare_done(is, NO_ERROR)) {
+    notify_from_thread(is, MEDIA_PREPARED, 0, 0);
+  }
+}
+
 int decode_thread(void *arg) {
 
   VideoState *is = (VideoState *)arg;
   AVPacket pkt1, *packet = &pkt1;
 
-  AVDictionary *io_dict = NULL;
-  AVIOInterruptCB callback;
+  AVIOInterruptCB callback, io_callback;
+  AVInputFormat *input_format = NULL;
+  int64_t probe_start;
+  int limited, indexed;
 
   int video_index = -1;
   int audio_index = -1;
@@ -878,6 +1512,7 @@ int decode_thread(void *arg) {
 
   int ret;
   int eof = 0;
+  int retry_ms = MIN_READ_RETRY_MS;
 
   is->videoStream=-1;
   is->audioStream=-1;
@@ -890,33 +1525,98 @@ int decode_thread(void *arg) {
     av_dict_set(&options, "headers", is->headers, 0);
   }
 
-  if (is->offset > 0) {
-    is->pFormatCtx = avformat_alloc_context();
-    is->pFormatCtx->skip_initial_bytes = is->offset;
-    //is->pFormatCtx->iformat = av_find_input_format("mp3");
-  }
-
   // will interrupt blocking functions if we quit!
   callback.callback = decode_interrupt_cb;
   callback.opaque = is;
-  if (avio_open2(&is->io_context, is->filename, 0, &callback, &io_dict))
+  io_callback = callback;
+  if (is->params.readahead_kb > 0 && is_http(is->filename)) {
+    io_callback.callback = io_interrupt_cb;
+  }
+
+  /*
+   * The source is opened once, the demuxer reads through the same
+   * connection. The protocol options are taken out of the dictionary here,
+   * whatever is left is meant for the demuxer.
+   */
+  if (is->params.cache_dir[0] && is_http(is->filename)) {
+    ret = cache_io_open(&is->cache_io, is->params.cache_dir,
+        (int64_t) is->params.cache_size_mb * 1024 * 1024, is->filename, &io_callback, &options);
+    if (ret >= 0) {
+      is->io_context = is->cache_io->pb;
+    }
+  } else {
+    ret = avio_open2(&is->io_context, is->filename, AVIO_FLAG_READ, &io_callback, &options);
+  }
+  /* not for live streams, the source stays as it is */
+  if (ret >= 0 && io_callback.callback == io_interrupt_cb &&
+      readahead_open(&is->readahead, is->io_context, is->params.readahead_kb * 1024,
+          is->params.readahead_burst, &callback) >= 0) {
+    is->io_context = is->readahead->pb;
+  }
+  if (ret < 0)
   {
     fprintf(stderr, "Unable to open I/O for %s\n", is->filename);
-    notify_from_thread(is, MEDIA_ERROR, 0, 0);
+    av_dict_free(&options);
+    if (prepare_done(is, UNKNOWN_ERROR)) {
+      notify_from_thread(is, MEDIA_ERROR, 0, 0);
+    }
     return -1;
   }
 
+  is->pFormatCtx = avformat_alloc_context();
+  if (!is->pFormatCtx)
+  {
+    av_dict_free(&options);
+    if (prepare_done(is, UNKNOWN_ERROR)) {
+      notify_from_thread(is, MEDIA_ERROR, 0, 0);
+    }
+    return -1;
+  }
+  /* closed with io_context, avformat_close_input() leaves it alone */
+  is->pFormatCtx->pb = is->io_context;
+  is->pFormatCtx->interrupt_callback = callback;
+  if (is->offset > 0) {
+    is->pFormatCtx->skip_initial_bytes = is->offset;
+    //is->pFormatCtx->iformat = av_find_input_format("mp3");
+  }
+
+  apply_probe_limits(is, is->pFormatCtx, &limited);
+  if (is->params.format_hint[0]) {
+    input_format = av_find_input_format(is->params.format_hint);
+  }
+
+  probe_start = av_gettime_relative();
+
   // Open video file
-  if(avformat_open_input(&is->pFormatCtx, is->filename, NULL, &options)!=0)
+  ret = avformat_open_input(&is->pFormatCtx, is->filename, input_format, &options);
+  av_dict_free(&options);
+  if(ret != 0)
   {
-	  notify_from_thread(is, MEDIA_ERROR, 0, 0);
+	  if (prepare_done(is, UNKNOWN_ERROR)) {
+	    notify_from_thread(is, MEDIA_ERROR, 0, 0);
+	  }
     return -1; // Couldn't open file
   }
+  /* probing below adds entries of FFmpeg's generic index, look before */
+  indexed = has_own_index(is->pFormatCtx);
 
   // Retrieve stream information
-  if(avformat_find_stream_info(is->pFormatCtx, NULL)<0)
+  ret = avformat_find_stream_info(is->pFormatCtx, NULL);
+  if (ret >= 0 && limited && !stream_info_complete(is->pFormatCtx)) {
+    /* picks up where the bounded probe stopped, nothing is read twice */
+    fprintf(stderr, "%s: incomplete stream info, probing in full\n", is->filename);
+    is->pFormatCtx->probesize = DEFAULT_PROBE_SIZE;
+    is->pFormatCtx->max_analyze_duration = 0;
+    is->pFormatCtx->fps_probe_size = -1;
+    is->probe_fallback = 1;
+    ret = avformat_find_stream_info(is->pFormatCtx, NULL);
+  }
+  is->probe_time = av_gettime_relative() - probe_start;
+  if(ret < 0)
   {
-	  notify_from_thread(is, MEDIA_ERROR, 0, 0);
+	  if (prepare_done(is, UNKNOWN_ERROR)) {
+	    notify_from_thread(is, MEDIA_ERROR, 0, 0);
+	  }
     return -1; // Couldn't find stream information
   }
 
@@ -946,13 +1646,18 @@ int decode_thread(void *arg) {
   if(is->videoStream < 0 && is->audioStream < 0) {
   //if(is->videoStream < 0 || is->audioStream < 0) {
     fprintf(stderr, "%s: could not open codecs\n", is->filename);
-    notify_from_thread(is, MEDIA_ERROR, 0, 0);
+    if (prepare_done(is, UNKNOWN_ERROR)) {
+      notify_from_thread(is, MEDIA_ERROR, 0, 0);
+    }
     return 0;
   }
 
   set_rotation(is->pFormatCtx, is->audio_st, is->video_st);
   set_framerate(is->pFormatCtx, is->audio_st, is->video_st);
   set_filesize(is->pFormatCtx);
+  if (!indexed) {
+    open_seek_index(is);
+  }
   set_chapter_count(is->pFormatCtx);
   //set_video_dimensions(is->pFormatCtx, is->video_st);
 
@@ -965,6 +1670,12 @@ int decode_thread(void *arg) {
       break;
     }
 
+    /* the scan is done, its index is used from the next seek on */
+    if (SDL_AtomicGet(&is->index_scanned)) {
+      SDL_AtomicSet(&is->index_scanned, 0);
+      adopt_index_scan(is);
+    }
+
     /*if (is->paused != is->last_paused) {
         is->last_paused = is->paused;
         if (is->paused)
@@ -975,63 +1686,114 @@ int decode_thread(void *arg) {
 
     // seek stuff goes here
     if(is->seek_req) {
-		int64_t seek_target = is->seek_pos;
-		int64_t seek_min    = is->seek_rel > 0 ? seek_target - is->seek_rel + 2: INT64_MIN;
-		int64_t seek_max    = is->seek_rel < 0 ? seek_target - is->seek_rel - 2: INT64_MAX;
+		int64_t seek_target, seek_rel, seek_min, seek_max;
+		int seek_flags, seek_accurate, superseded;
+
+		/* take the latest target, stream_seek() may replace it any time */
+		SDL_LockMutex(is->continue_read_mutex);
+		seek_target = is->seek_pos;
+		seek_rel    = is->seek_rel;
+		seek_flags  = is->seek_flags;
+		seek_accurate = is->seek_accurate;
+		is->seek_serial = is->seek_request_serial;
+		is->seek_req = 0;
+		SDL_UnlockMutex(is->continue_read_mutex);
+
+		seek_min    = seek_rel > 0 ? seek_target - seek_rel + 2: INT64_MIN;
+		seek_max    = seek_rel < 0 ? seek_target - seek_rel - 2: INT64_MAX;
+
+		is->seeking = 1;
+		ret = avformat_seek_file(is->pFormatCtx, -1, seek_min, seek_target, seek_max, seek_flags);
+		is->seeking = 0;
+		superseded = is->seek_serial != is->seek_request_serial;
 
-		int ret = avformat_seek_file(is->pFormatCtx, -1, seek_min, seek_target, seek_max, is->seek_flags);
       if(ret < 0) {
-	fprintf(stderr, "%s: error while seeking\n", is->pFormatCtx->filename);
+	if (superseded) {
+	  /* interrupted on purpose */
+	  io_clear_interrupt(is->pFormatCtx->pb);
+	} else {
+	  fprintf(stderr, "%s: error while seeking\n", is->pFormatCtx->filename);
+	}
       } else {
+	/* read by the decoders when they take the flush packet */
+	is->seek_catchup_target = seek_accurate ? seek_target : AV_NOPTS_VALUE;
 	if(is->audioStream >= 0) {
 	  packet_queue_flush(&is->audioq);
-	  packet_queue_put(is, &is->audioq, &is->flush_pkt);
+	  packet_queue_put_flush(&is->audioq, &is->flush_pkt);
 	}
 	if(is->videoStream >= 0) {
 	  packet_queue_flush(&is->videoq);
-	  packet_queue_put(is, &is->videoq, &is->flush_pkt);
+	  packet_queue_put_flush(&is->videoq, &is->flush_pkt);
+	  is->video_flush_count++;
 	}
-	notify_from_thread(is, MEDIA_SEEK_COMPLETE, 0, 0);
+      }
 
+      /* only the last target is reported, ext1 tells which one it was */
+      if (!superseded) {
+        is->seek_display_serial = ret >= 0 ? is->video_flush_count : -1;
+        notify_from_thread(is, MEDIA_SEEK_COMPLETE,
+            (seek_flags & AVSEEK_FLAG_BYTE) ? 0 : (int) (seek_target / 1000), 0);
       }
-      is->seek_req = 0;
       eof = 0;
+      retry_ms = MIN_READ_RETRY_MS;
     }
 
-    if (is->audioq.size >= MAX_AUDIOQ_SIZE && !is->prepared) {
-        queueAudioSamples(&is->audio_player, is);
-
-        notify_from_thread(is, MEDIA_PREPARED, 0, 0);
-    	is->prepared = 1;
+    if (!is->prepared && ready_to_prepare(is)) {
+        set_prepared(is);
     }
 
-    if(is->audioq.size > MAX_AUDIOQ_SIZE ||
-       is->videoq.size > MAX_VIDEOQ_SIZE) {
-      SDL_Delay(10);
+    if(queues_full(is)) {
+      wait_continue_read(is, 0);
       continue;
     }
     if((ret = av_read_frame(is->pFormatCtx, packet)) < 0) {
       if (ret == AVERROR_EOF || !is->pFormatCtx->pb->eof_reached) {
+          /* let the decoders return the frames they still hold */
+          if (is->audioStream >= 0) {
+              packet_queue_put_nullpacket(&is->audioq);
+          }
+          if (is->videoStream >= 0) {
+              packet_queue_put_nullpacket(&is->videoq);
+          }
+          /* a source shorter than prepare_buffer_ms is buffered completely */
+          if (!is->prepared) {
+              set_prepared(is);
+          }
+          if (is->seek_indexing) {
+              seek_index_finish(&is->seek_index);
+          }
           eof = 1;
     	  break;
       }
 
       if(is->pFormatCtx->pb->error == 0) {
-	SDL_Delay(100); /* no error; wait for user input */
+	/* no error; wait for user input, longer while the source stays idle */
+	wait_continue_read(is, retry_ms);
+	retry_ms = FFMIN(retry_ms * 2, MAX_READ_RETRY_MS);
 	continue;
       } else {
 	break;
       }
     }
+    retry_ms = MIN_READ_RETRY_MS;
+    if (is->seek_indexing && packet->stream_index == is->seek_index.stream_index) {
+      seek_index_add(&is->seek_index, packet);
+    }
+
     // Is this a packet from the video stream?
     if(packet->stream_index == is->videoStream) {
-      packet_queue_put(is, &is->videoq, packet);
+      packet_queue_put(&is->videoq, packet);
     } else if(packet->stream_index == is->audioStream) {
-      packet_queue_put(is, &is->audioq, packet);
+      packet_queue_put(&is->audioq, packet);
     } else {
       av_packet_unref(packet);
     }
 
+    if (is->seek_start_time) {
+      is->seek_latency = av_gettime_relative() - is->seek_start_time;
+      is->seek_start_time = 0;
+    }
+
 	if (eof) {
 		break;
 	}
@@ -1041,19 +1803,48 @@ int decode_thread(void *arg) {
 	  notify_from_thread(is, MEDIA_PLAYBACK_COMPLETE, 0, 0);
   }
 
+  /* what this play added is there for the next one */
+  if (is->seek_indexing) {
+	  seek_index_save(&is->seek_index);
+  }
+
+  /* a synchronous prepare() must not wait for a thread that is gone */
+  if (!is->prepared) {
+	  prepare_done(is, UNKNOWN_ERROR);
+  }
+
   one = 1;
   return 0;
 }
 
-void stream_seek(VideoState *is, int64_t pos, int64_t rel, int seek_by_bytes) {
-	if (!is->seek_req) {
-		is->seek_pos = pos;
-		is->seek_rel = rel;
-		is->seek_flags &= ~AVSEEK_FLAG_BYTE;
-		if (seek_by_bytes)
-			is->seek_flags |= AVSEEK_FLAG_BYTE;
-		is->seek_req = 1;
+/*
+ * Latest wins: a target the read thread has not taken yet is replaced, one
+ * it is still seeking to is abandoned through decode_interrupt_cb().
+ */
+void stream_seek(VideoState *is, int64_t pos, int64_t rel, int seek_by_bytes, int accurate) {
+	/* created by prepareAsync_l(), before that there is no read thread to race */
+	if (is->continue_read_mutex) {
+		SDL_LockMutex(is->continue_read_mutex);
+	}
+	if (is->seek_req || is->seeking) {
+		is->seeks_coalesced++;
+	}
+	is->seek_pos = pos;
+	is->seek_rel = rel;
+	is->seek_flags &= ~AVSEEK_FLAG_BYTE;
+	if (seek_by_bytes)
+		is->seek_flags |= AVSEEK_FLAG_BYTE;
+	is->seek_accurate = accurate && !seek_by_bytes;
+	is->seek_req = 1;
+	is->seek_request_serial++;
+	is->seek_start_time = av_gettime_relative();
+	is->seek_display_start = is->seek_start_time;
+	if (is->continue_read_mutex) {
+		SDL_CondSignal(is->continue_read_cond);
+		SDL_UnlockMutex(is->continue_read_mutex);
 	}
+
+	wake_refresh_thread(is);
 }
 
 VideoState * create() {
@@ -1062,6 +1853,10 @@ VideoState * create() {
 	is = av_mallocz(sizeof(VideoState));
 	is->last_paused = -1;
 	is->stream_type = 3;
+	is->seek_catchup_target = AV_NOPTS_VALUE;
+	is->audio_catchup = AV_NOPTS_VALUE;
+	is->video_catchup = AV_NOPTS_VALUE;
+	initParameters(&is->params);
 
     return is;
 }
@@ -1078,6 +1873,7 @@ VideoState * getNextMediaPlayer(VideoState **ps) {
 
 void disconnect(VideoState **ps) {
 	VideoState *is = *ps;
+	int i;
 
 	if (is) {
 		if (is->pFormatCtx) {
@@ -1086,25 +1882,7 @@ void disconnect(VideoState **ps) {
 		}
 
 		if (is->audioq.initialized == 1) {
-			if (is->audioq.first_pkt) {
-				free(is->audioq.first_pkt);
-			}
-
-			if (is->audioq.last_pkt) {
-				//free(is->audioq.last_pkt);
-			}
-
-			if (is->audioq.mutex) {
-				free(is->audioq.mutex);
-				is->audioq.mutex = NULL;
-			}
-
-			if (is->audioq.cond) {
-				free(is->audioq.cond);
-				is->audioq.cond = NULL;
-			}
-
-			is->audioq.initialized = 0;
+			packet_queue_destroy(&is->audioq);
 		}
 
 		/*AVFrame *frame = &is->audio_frame;
@@ -1118,54 +1896,75 @@ void disconnect(VideoState **ps) {
 		}
 
 		if (is->videoq.initialized == 1) {
-			if (is->videoq.first_pkt) {
-				free(is->videoq.first_pkt);
-			}
-
-			if (is->videoq.last_pkt) {
-				//free(is->videoq.last_pkt);
-			}
-
-			if (is->videoq.mutex) {
-				free(is->videoq.mutex);
-				is->videoq.mutex = NULL;
-			}
+			packet_queue_destroy(&is->videoq);
+		}
 
-			if (is->videoq.cond) {
-				free(is->videoq.cond);
-				is->videoq.cond = NULL;
+		for (i = 0; i < VIDEO_PICTURE_QUEUE_SIZE_MAX; i++) {
+			if (is->pictq[i].bmp) {
+				destroyBmp(&is->video_player, is->pictq[i].bmp);
+				is->pictq[i].bmp = NULL;
 			}
-
-			is->videoq.initialized = 0;
+			av_frame_free(&is->pictq[i].frame);
 		}
 
-		//VideoPicture    pictq[VIDEO_PICTURE_QUEUE_SIZE];
-
 		if (is->pictq_mutex) {
-			free(is->pictq_mutex);
+			SDL_DestroyMutex(is->pictq_mutex);
 			is->pictq_mutex = NULL;
 		}
 
 		if (is->pictq_cond) {
-			free(is->pictq_cond);
+			SDL_DestroyCond(is->pictq_cond);
 			is->pictq_cond = NULL;
 		}
 
+		refresh_destroy(is);
+
+		if (is->continue_read_mutex) {
+			SDL_DestroyMutex(is->continue_read_mutex);
+			is->continue_read_mutex = NULL;
+		}
+
+		if (is->continue_read_cond) {
+			SDL_DestroyCond(is->continue_read_cond);
+			is->continue_read_cond = NULL;
+		}
+
+		if (is->prepare_mutex) {
+			SDL_DestroyMutex(is->prepare_mutex);
+			is->prepare_mutex = NULL;
+		}
+
+		if (is->prepare_cond) {
+			SDL_DestroyCond(is->prepare_cond);
+			is->prepare_cond = NULL;
+		}
+
 		if (is->parse_tid) {
 			free(is->parse_tid);
 			is->parse_tid = NULL;
 		}
 
+		if (is->index_tid) {
+			free(is->index_tid);
+			is->index_tid = NULL;
+		}
+
 		if (is->video_tid) {
 			free(is->video_tid);
 			is->video_tid = NULL;
 		}
 
-		if (is->io_context) {
-			avio_close(is->io_context);
-			is->io_context = NULL;
+		if (is->audio_tid) {
+			free(is->audio_tid);
+			is->audio_tid = NULL;
 		}
 
+		pcm_ring_destroy(&is->pcm_ring);
+		seek_index_close(&is->seek_index);
+		seek_index_close(&is->index_scan);
+
+		close_io(is);
+
 		if (is->sws_ctx) {
 			sws_freeContext(is->sws_ctx);
 			is->sws_ctx = NULL;
@@ -1176,6 +1975,10 @@ void disconnect(VideoState **ps) {
 			is->sws_ctx_audio = NULL;
 		}
 
+		av_freep(&is->audio_buf1);
+		is->audio_buf1_size = 0;
+		is->audio_buf = NULL;
+
 		if (is->audio_player) {
 			shutdown(&is->audio_player);
 			is->audio_player = NULL;
@@ -1272,16 +2075,17 @@ int prepare(VideoState **ps) {
 	is->prepare_sync = 1;
 	int ret = prepareAsync_l(ps);
 	if (ret != NO_ERROR) {
+		is->prepare_sync = 0;
 		return ret;
 	}
-	if (is->prepare_sync) {
-		while (!is->prepared) {
-			sleep(1);
-		}
 
-		is->prepare_sync = 0;
+	ret = wait_prepared(is, is->params.prepare_timeout_ms);
+	is->prepare_sync = 0;
+	if (ret == TIMED_OUT) {
+		/* the caller gives up on the source, so does the read thread */
+		reset(ps);
 	}
-	return is->prepare_sync;
+	return ret;
 }
 
 int prepareAsync(VideoState **ps) {
@@ -1291,10 +2095,14 @@ int prepareAsync(VideoState **ps) {
 int start(VideoState **ps) {
 	VideoState *is = *ps;
 
-	if (is && is->audio_player) {
+	/* video only sources have no audio output to start */
+	if (is && (is->audio_player || is->video_st)) {
 		is->paused = 0;
 	    is->player_started = 1;
-		setPlayingAudioPlayer(&is->audio_player, 0);
+		if (is->audio_player) {
+			setPlayingAudioPlayer(&is->audio_player, 0);
+		}
+		wake_refresh_thread(is);
 		return NO_ERROR;
 	}
 
@@ -1312,15 +2120,19 @@ int stop(VideoState **ps) {
 	     * waiting and terminate normally.
 	     */
 	    if (is->audioq.initialized == 1) {
-	    	SDL_CondSignal(is->audioq.cond);
+	    	packet_queue_abort(&is->audioq);
 	    }
 
 	    if (is->videoq.initialized == 1) {
-	    	SDL_CondSignal(is->videoq.cond);
+	    	packet_queue_abort(&is->videoq);
 	    }
 
-	    if (is->video_refresh_tid) {
-	    	pthread_join(*(is->video_refresh_tid), NULL);
+	    wake_read_thread(is);
+	    wake_refresh_thread(is);
+	    wake_prepare_waiter(is);
+
+	    if (is->index_tid) {
+	    	pthread_join(*(is->index_tid), NULL);
 	    }
 
 	    if (is->parse_tid) {
@@ -1328,13 +2140,25 @@ int stop(VideoState **ps) {
 	    	printf("one: %d:\n", one);
 	    }
 
+	    /* created by the read thread when it opens a video stream */
+	    if (is->video_refresh_tid) {
+	    	pthread_join(*(is->video_refresh_tid), NULL);
+	    }
+
 	    if (is->video_tid) {
             SDL_CondSignal(is->pictq_cond);
 	    	pthread_join(*(is->video_tid), NULL);
 	    	printf("two: %d:\n", two);
 	    }
 
-        setPlayingAudioPlayer(&is->audio_player, 2);
+	    if (is->audio_tid) {
+	    	pcm_ring_abort(&is->pcm_ring);
+	    	pthread_join(*(is->audio_tid), NULL);
+	    }
+
+        if (is->audio_player) {
+            setPlayingAudioPlayer(&is->audio_player, 2);
+        }
         
 	    clear_l(&is);
 
@@ -1347,9 +2171,12 @@ int stop(VideoState **ps) {
 int pause_l(VideoState **ps) {
 	VideoState *is = *ps;
 
-	if (is && is->audio_player) {
+	if (is && (is->audio_player || is->video_st)) {
 		is->paused = !is->paused;
-		setPlayingAudioPlayer(&is->audio_player, 1);
+		if (is->audio_player) {
+			setPlayingAudioPlayer(&is->audio_player, 1);
+		}
+		wake_refresh_thread(is);
 		return NO_ERROR;
 	}
 
@@ -1394,8 +2221,8 @@ int getVideoHeight(VideoState **ps, int *h) {
     return NO_ERROR;
 }
 
-int seekTo(VideoState **ps, int msec) {
-    int result = seekTo_l(ps, msec);
+int seekTo(VideoState **ps, int msec, int mode) {
+    int result = seekTo_l(ps, msec, mode);
 	return result;
 }
 
@@ -1403,7 +2230,11 @@ int getCurrentPosition(VideoState **ps, int *msec) {
 	VideoState *is = *ps;
 
 	if (is) {
-		*msec = is->audio_clock * 1000;
+		/*
+		 * what is heard, not what was decoded, without audio the last
+		 * picture shown tells the position
+		 */
+		*msec = FFMAX(is->audio_st ? get_audio_clock(is) : is->video_current_pts, 0) * 1000;
 		return NO_ERROR;
 	}
 
@@ -1425,26 +2256,40 @@ int reset(VideoState **ps) {
 	     * waiting and terminate normally.
 	     */
 	    if (is->audioq.initialized == 1) {
-	    	SDL_CondSignal(is->audioq.cond);
+	    	packet_queue_abort(&is->audioq);
 	    }
 
 	    if (is->videoq.initialized == 1) {
-	    	SDL_CondSignal(is->videoq.cond);
+	    	packet_queue_abort(&is->videoq);
 	    }
 
-	    if (is->video_refresh_tid) {
-	    	pthread_join(*(is->video_refresh_tid), NULL);
+	    wake_read_thread(is);
+	    wake_refresh_thread(is);
+	    wake_prepare_waiter(is);
+
+	    if (is->index_tid) {
+	    	pthread_join(*(is->index_tid), NULL);
 	    }
 
 	    if (is->parse_tid) {
 	    	pthread_join(*(is->parse_tid), NULL);
 	    }
 
+	    /* created by the read thread when it opens a video stream */
+	    if (is->video_refresh_tid) {
+	    	pthread_join(*(is->video_refresh_tid), NULL);
+	    }
+
 	    if (is->video_tid) {
             SDL_CondSignal(is->pictq_cond);
 	    	pthread_join(*(is->video_tid), NULL);
 	    }
 
+	    if (is->audio_tid) {
+	    	pcm_ring_abort(&is->pcm_ring);
+	    	pthread_join(*(is->audio_tid), NULL);
+	    }
+
 	    clear_l(&is);
 
 		return NO_ERROR;
@@ -1540,8 +2385,391 @@ int setNextPlayer(VideoState **ps, VideoState *next) {
     return NO_ERROR; //INVALID_OPERATION;
 }
 
+void initParameters(PlayerParameters *params) {
+	memset(params, 0, sizeof(PlayerParameters));
+	params->min_buffer_ms = DEFAULT_MIN_BUFFER_MS;
+	params->max_buffer_ms = DEFAULT_MAX_BUFFER_MS;
+	params->audio_frames_per_buffer = DEFAULT_AUDIO_FRAMES_PER_BUFFER;
+	params->video_picture_queue_size = DEFAULT_VIDEO_PICTURE_QUEUE_SIZE;
+	params->video_render_mode = VIDEO_RENDER_MODE_COPY;
+	params->decoder_thread_count = 0;
+	params->decoder_thread_type = DECODER_THREAD_TYPE_AUTO;
+	params->prepare_timeout_ms = 0;
+	params->fast_start = 0;
+	params->probe_size = 0;
+	params->analyze_duration_ms = 0;
+	params->fps_probe_size = 0;
+	params->format_hint[0] = '\0';
+	params->prepare_policy = PREPARE_POLICY_BUFFERED;
+	params->prepare_buffer_ms = DEFAULT_PREPARE_BUFFER_MS;
+	params->seek_index_dir[0] = '\0';
+	params->cache_dir[0] = '\0';
+	params->cache_size_mb = DEFAULT_CACHE_SIZE_MB;
+	params->readahead_kb = 0;
+	params->readahead_burst = 0;
+}
+
+int setPlayerParameter(PlayerParameters *params, int key, int value) {
+	switch (key) {
+	case KEY_PARAMETER_MIN_BUFFER_MS:
+		if (value < 0) {
+			return BAD_VALUE;
+		}
+		params->min_buffer_ms = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_MAX_BUFFER_MS:
+		if (value <= 0) {
+			return BAD_VALUE;
+		}
+		params->max_buffer_ms = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_AUDIO_FRAMES_PER_BUFFER:
+		if (value < MIN_AUDIO_FRAMES_PER_BUFFER || value > MAX_AUDIO_FRAMES_PER_BUFFER) {
+			return BAD_VALUE;
+		}
+		params->audio_frames_per_buffer = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_VIDEO_PICTURE_QUEUE_SIZE:
+		if (value < 1 || value > VIDEO_PICTURE_QUEUE_SIZE_MAX) {
+			return BAD_VALUE;
+		}
+		params->video_picture_queue_size = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_VIDEO_RENDER_MODE:
+		if (value != VIDEO_RENDER_MODE_COPY && value != VIDEO_RENDER_MODE_DIRECT) {
+			return BAD_VALUE;
+		}
+		params->video_render_mode = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_DECODER_THREAD_COUNT:
+		if (value < 0 || value > MAX_DECODER_THREAD_COUNT) {
+			return BAD_VALUE;
+		}
+		params->decoder_thread_count = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_DECODER_THREAD_TYPE:
+		if (value < DECODER_THREAD_TYPE_AUTO || value > DECODER_THREAD_TYPE_SLICE) {
+			return BAD_VALUE;
+		}
+		params->decoder_thread_type = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_TIMEOUT_MS:
+		if (value < 0) {
+			return BAD_VALUE;
+		}
+		params->prepare_timeout_ms = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_FAST_START:
+		if (value != 0 && value != 1) {
+			return BAD_VALUE;
+		}
+		params->fast_start = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_PROBE_SIZE:
+		if (value != 0 && value < MIN_PROBE_SIZE) {
+			return BAD_VALUE;
+		}
+		params->probe_size = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_ANALYZE_DURATION_MS:
+		if (value < 0) {
+			return BAD_VALUE;
+		}
+		params->analyze_duration_ms = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_FPS_PROBE_SIZE:
+		if (value < 0) {
+			return BAD_VALUE;
+		}
+		params->fps_probe_size = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_POLICY:
+		if (value != PREPARE_POLICY_BUFFERED && value != PREPARE_POLICY_FIRST_FRAME) {
+			return BAD_VALUE;
+		}
+		params->prepare_policy = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_BUFFER_MS:
+		if (value < 0) {
+			return BAD_VALUE;
+		}
+		params->prepare_buffer_ms = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_CACHE_SIZE_MB:
+		if (value <= 0) {
+			return BAD_VALUE;
+		}
+		params->cache_size_mb = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_READAHEAD_KB:
+		if (value != 0 && (value < MIN_READAHEAD_KB || value > MAX_READAHEAD_KB)) {
+			return BAD_VALUE;
+		}
+		params->readahead_kb = value;
+		return NO_ERROR;
+	case KEY_PARAMETER_READAHEAD_BURST:
+		if (value != 0 && value != 1) {
+			return BAD_VALUE;
+		}
+		params->readahead_burst = value;
+		return NO_ERROR;
+	default:
+		return BAD_VALUE;
+	}
+}
+
+int getPlayerParameter(PlayerParameters *params, int key, int *value) {
+	switch (key) {
+	case KEY_PARAMETER_MIN_BUFFER_MS:
+		*value = params->min_buffer_ms;
+		return NO_ERROR;
+	case KEY_PARAMETER_MAX_BUFFER_MS:
+		*value = params->max_buffer_ms;
+		return NO_ERROR;
+	case KEY_PARAMETER_AUDIO_FRAMES_PER_BUFFER:
+		*value = params->audio_frames_per_buffer;
+		return NO_ERROR;
+	case KEY_PARAMETER_VIDEO_PICTURE_QUEUE_SIZE:
+		*value = params->video_picture_queue_size;
+		return NO_ERROR;
+	case KEY_PARAMETER_VIDEO_RENDER_MODE:
+		*value = params->video_render_mode;
+		return NO_ERROR;
+	case KEY_PARAMETER_DECODER_THREAD_COUNT:
+		*value = params->decoder_thread_count;
+		return NO_ERROR;
+	case KEY_PARAMETER_DECODER_THREAD_TYPE:
+		*value = params->decoder_thread_type;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_TIMEOUT_MS:
+		*value = params->prepare_timeout_ms;
+		return NO_ERROR;
+	case KEY_PARAMETER_FAST_START:
+		*value = params->fast_start;
+		return NO_ERROR;
+	case KEY_PARAMETER_PROBE_SIZE:
+		*value = params->probe_size;
+		return NO_ERROR;
+	case KEY_PARAMETER_ANALYZE_DURATION_MS:
+		*value = params->analyze_duration_ms;
+		return NO_ERROR;
+	case KEY_PARAMETER_FPS_PROBE_SIZE:
+		*value = params->fps_probe_size;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_POLICY:
+		*value = params->prepare_policy;
+		return NO_ERROR;
+	case KEY_PARAMETER_PREPARE_BUFFER_MS:
+		*value = params->prepare_buffer_ms;
+		return NO_ERROR;
+	case KEY_PARAMETER_CACHE_SIZE_MB:
+		*value = params->cache_size_mb;
+		return NO_ERROR;
+	case KEY_PARAMETER_READAHEAD_KB:
+		*value = params->readahead_kb;
+		return NO_ERROR;
+	case KEY_PARAMETER_READAHEAD_BURST:
+		*value = params->readahead_burst;
+		return NO_ERROR;
+	default:
+		return BAD_VALUE;
+	}
+}
+
+int isStringParameter(int key) {
+	return key == KEY_PARAMETER_FORMAT_HINT || key == KEY_PARAMETER_SEEK_INDEX_DIR ||
+			key == KEY_PARAMETER_CACHE_DIR;
+}
+
+int setPlayerStringParameter(PlayerParameters *params, int key, const char *value) {
+	switch (key) {
+	case KEY_PARAMETER_FORMAT_HINT:
+		/* NULL or empty goes back to probing the format */
+		if (!value || !value[0]) {
+			params->format_hint[0] = '\0';
+			return NO_ERROR;
+		}
+		if (strlen(value) >= sizeof(params->format_hint) || !av_find_input_format(value)) {
+			return BAD_VALUE;
+		}
+		av_strlcpy(params->format_hint, value, sizeof(params->format_hint));
+		return NO_ERROR;
+	case KEY_PARAMETER_SEEK_INDEX_DIR:
+		/* NULL or empty keeps indexes in memory only */
+		if (!value || !value[0]) {
+			params->seek_index_dir[0] = '\0';
+			return NO_ERROR;
+		}
+		if (strlen(value) >= sizeof(params->seek_index_dir) || access(value, W_OK) != 0) {
+			return BAD_VALUE;
+		}
+		av_strlcpy(params->seek_index_dir, value, sizeof(params->seek_index_dir));
+		return NO_ERROR;
+	case KEY_PARAMETER_CACHE_DIR:
+		/* NULL or empty streams without caching */
+		if (!value || !value[0]) {
+			params->cache_dir[0] = '\0';
+			return NO_ERROR;
+		}
+		if (strlen(value) >= sizeof(params->cache_dir) || access(value, W_OK) != 0) {
+			return BAD_VALUE;
+		}
+		av_strlcpy(params->cache_dir, value, sizeof(params->cache_dir));
+		return NO_ERROR;
+	default:
+		return BAD_VALUE;
+	}
+}
+
+int getPlayerStringParameter(PlayerParameters *params, int key, const char **value) {
+	switch (key) {
+	case KEY_PARAMETER_FORMAT_HINT:
+		*value = params->format_hint;
+		return NO_ERROR;
+	case KEY_PARAMETER_SEEK_INDEX_DIR:
+		*value = params->seek_index_dir;
+		return NO_ERROR;
+	case KEY_PARAMETER_CACHE_DIR:
+		*value = params->cache_dir;
+		return NO_ERROR;
+	default:
+		return BAD_VALUE;
+	}
+}
+
+int setParameters(VideoState **ps, PlayerParameters *params) {
+	VideoState *is = *ps;
+
+	if (is) {
+		is->params = *params;
+		return NO_ERROR;
+	}
+
+	return INVALID_OPERATION;
+}
+
+int setParameter(VideoState **ps, int key, int value) {
+	VideoState *is = *ps;
+
+	if (is) {
+		return setPlayerParameter(&is->params, key, value);
+	}
+
+	return INVALID_OPERATION;
+}
+
+int getParameter(VideoState **ps, int key, int *value) {
+	VideoState *is = *ps;
+
+	if (!is) {
+		return INVALID_OPERATION;
+	}
+
+	switch (key) {
+	case KEY_PARAMETER_AUDIO_BUFFERED_MS:
+		*value = is->audioq.initialized ? packet_queue_duration(&is->audioq) / 1000 : 0;
+		break;
+	case KEY_PARAMETER_VIDEO_BUFFERED_MS:
+		*value = is->videoq.initialized ? packet_queue_duration(&is->videoq) / 1000 : 0;
+		break;
+	case KEY_PARAMETER_READ_WAKEUPS:
+		*value = is->read_wakeups;
+		break;
+	case KEY_PARAMETER_SEEK_LATENCY_MS:
+		*value = is->seek_latency / 1000;
+		break;
+	case KEY_PARAMETER_AUDIO_UNDERRUNS:
+		*value = is->audio_underruns;
+		break;
+	case KEY_PARAMETER_AUDIO_DRIFT_MS:
+		*value = (int) lrint(is->audio_drift * 1000);
+		break;
+	case KEY_PARAMETER_AUDIO_COMPENSATION_PPM:
+		*value = is->audio_compensation;
+		break;
+	case KEY_PARAMETER_VIDEO_FRAMES_DROPPED:
+		*value = is->frames_dropped_early + is->frames_dropped_late;
+		break;
+	case KEY_PARAMETER_VIDEO_SKIP_LEVEL:
+		*value = is->skip_level;
+		break;
+	case KEY_PARAMETER_VIDEO_DECODE_FPS:
+		/* frames per second of time spent in the decoder, waits excluded */
+		*value = is->video_decode_time > 0 ?
+			(int) (is->frames_decoded * (int64_t) AV_TIME_BASE / is->video_decode_time) : 0;
+		break;
+	case KEY_PARAMETER_DECODER_THREADS:
+		*value = is->video_st ? is->video_st->codec->thread_count : 0;
+		break;
+	case KEY_PARAMETER_VIDEO_REFRESH_WAKEUPS:
+		*value = is->refresh_wakeups;
+		break;
+	case KEY_PARAMETER_PREPARE_LATENCY_MS:
+		*value = is->prepared ? is->prepare_latency / 1000 : 0;
+		break;
+	case KEY_PARAMETER_PROBE_TIME_MS:
+		*value = is->probe_time / 1000;
+		break;
+	case KEY_PARAMETER_PROBE_FALLBACK:
+		*value = is->probe_fallback;
+		break;
+	case KEY_PARAMETER_SEEK_DISPLAY_LATENCY_MS:
+		*value = is->seek_display_latency / 1000;
+		break;
+	case KEY_PARAMETER_SEEKS_COALESCED:
+		*value = is->seeks_coalesced;
+		break;
+	case KEY_PARAMETER_SEEK_CATCHUP_FRAMES:
+		*value = is->catchup_frames;
+		break;
+	case KEY_PARAMETER_SEEK_INDEX_ENTRIES:
+		*value = is->seek_indexing ? is->seek_index.nb_entries : 0;
+		break;
+	case KEY_PARAMETER_CACHE_READ_KB:
+		*value = is->cache_io ? (int) (is->cache_io->cache_read_bytes / 1024) : 0;
+		break;
+	case KEY_PARAMETER_NETWORK_READ_KB:
+		*value = is->cache_io ? (int) (is->cache_io->network_read_bytes / 1024) : 0;
+		break;
+	case KEY_PARAMETER_READAHEAD_BUFFERED_KB:
+		*value = is->readahead ? readahead_buffered(is->readahead) / 1024 : 0;
+		break;
+	case KEY_PARAMETER_READAHEAD_STALLS:
+		*value = is->readahead ? is->readahead->stalls : 0;
+		break;
+	case KEY_PARAMETER_READAHEAD_BURSTS:
+		*value = is->readahead ? is->readahead->bursts : 0;
+		break;
+	default:
+		return getPlayerParameter(&is->params, key, value);
+	}
+
+	return NO_ERROR;
+}
+
+int setStringParameter(VideoState **ps, int key, const char *value) {
+	VideoState *is = *ps;
+
+	if (is) {
+		return setPlayerStringParameter(&is->params, key, value);
+	}
+
+	return INVALID_OPERATION;
+}
+
+int getStringParameter(VideoState **ps, int key, const char **value) {
+	VideoState *is = *ps;
+
+	if (is) {
+		return getPlayerStringParameter(&is->params, key, value);
+	}
+
+	return INVALID_OPERATION;
+}
+
 void clear_l(VideoState **ps) {
 	VideoState *is = *ps;
+	int i;
 
 	if (is) {
 		if (is->pFormatCtx) {
@@ -1559,38 +2787,32 @@ void clear_l(VideoState **ps) {
 	    is->seek_flags = 0;
 	    is->seek_pos = 0;
 	    is->seek_rel = 0;
+	    is->seek_request_serial = 0;
+	    is->seek_serial = 0;
+	    is->seeking = 0;
+	    is->seeks_coalesced = 0;
+	    is->video_flush_count = 0;
+	    is->seek_display_serial = 0;
+	    is->seek_display_start = 0;
+	    is->seek_display_latency = 0;
+	    is->seek_accurate = 0;
+	    is->seek_catchup_target = AV_NOPTS_VALUE;
+	    is->audio_catchup = AV_NOPTS_VALUE;
+	    is->video_catchup = AV_NOPTS_VALUE;
+	    is->catchup_frames = 0;
+	    is->seek_start_time = 0;
+	    is->seek_latency = 0;
+	    is->read_wakeups = 0;
 
 	    is->audio_clock = 0;
 	    is->audio_st = NULL;
 
 	    if (is->audioq.initialized == 1) {
-	    	if (is->audioq.first_pkt) {
-	    		free(is->audioq.first_pkt);
-	    	}
-
-	        if (is->audioq.last_pkt) {
-	        	//free(is->audioq.last_pkt);
-			}
-
-	        if (is->audioq.mutex) {
-	        	free(is->audioq.mutex);
-	        	is->audioq.mutex = NULL;
-	        }
-
-	        if (is->audioq.cond) {
-	        	free(is->audioq.cond);
-	        	is->audioq.cond = NULL;
-	        }
-
-	        is->audioq.initialized = 0;
+	    	packet_queue_destroy(&is->audioq);
 	    }
 
-  	    /*AVFrame *frame = &is->audio_frame;
-	    if (frame->data) {
-	    	av_free_frame(frame);
-	    }*/
+	    av_frame_unref(&is->audio_frame);
 
-	    is->audio_buf[0] = '\0';
 	    is->audio_buf_size = 0;
 	    is->audio_buf_index = 0;
 
@@ -1599,8 +2821,6 @@ void clear_l(VideoState **ps) {
 	    	av_packet_unref(pkt);
 	    }
 
-	    is->audio_pkt_data = NULL;
-	    is->audio_pkt_size = 0;
 	    is->audio_hw_buf_size = 0;
 	    is->audio_diff_cum = 0;
 	    is->audio_diff_avg_coef = 0;
@@ -1615,42 +2835,68 @@ void clear_l(VideoState **ps) {
 	    is->video_st = NULL;
 
 	    if (is->videoq.initialized == 1) {
-	    	if (is->videoq.first_pkt) {
-	    		free(is->videoq.first_pkt);
-	    	}
-
-	        if (is->videoq.last_pkt) {
-	        	//free(is->videoq.last_pkt);
-			}
-
-	        if (is->videoq.mutex) {
-	        	free(is->videoq.mutex);
-	        	is->videoq.mutex = NULL;
-	        }
-
-	        if (is->videoq.cond) {
-	        	free(is->videoq.cond);
-	        	is->videoq.cond = NULL;
-	        }
-
-	        is->videoq.initialized = 0;
+	    	packet_queue_destroy(&is->videoq);
 	    }
 
-	    //VideoPicture    pictq[VIDEO_PICTURE_QUEUE_SIZE];
+	    for (i = 0; i < VIDEO_PICTURE_QUEUE_SIZE_MAX; i++) {
+	    	if (is->pictq[i].bmp) {
+	    		destroyBmp(&is->video_player, is->pictq[i].bmp);
+	    	}
+	    	av_frame_free(&is->pictq[i].frame);
+	    }
+	    memset(is->pictq, 0, sizeof(is->pictq));
+	    is->pictq_serial = 0;
+	    is->video_current_serial = 0;
+	    is->frames_dropped_early = 0;
+	    is->frames_dropped_late = 0;
+	    is->skip_level = 0;
+	    is->lag_check_time = 0;
+	    is->lag_check_drops = 0;
+	    is->frames_decoded = 0;
+	    is->video_decode_time = 0;
 	    is->pictq_size = 0;
 	    is->pictq_rindex = 0;
 	    is->pictq_windex = 0;
 
 	    if (is->pictq_mutex) {
-	    	free(is->pictq_mutex);
+	    	SDL_DestroyMutex(is->pictq_mutex);
 	    	is->pictq_mutex = NULL;
 	    }
 
 	    if (is->pictq_cond) {
-	    	free(is->pictq_cond);
+	    	SDL_DestroyCond(is->pictq_cond);
 	    	is->pictq_cond = NULL;
 	    }
 
+	    refresh_destroy(is);
+	    is->refresh_wakeups = 0;
+	    is->prepare_start_time = 0;
+	    is->prepare_latency = 0;
+	    is->probe_time = 0;
+	    is->probe_fallback = 0;
+
+	    if (is->continue_read_mutex) {
+	    	SDL_DestroyMutex(is->continue_read_mutex);
+	    	is->continue_read_mutex = NULL;
+	    }
+
+	    if (is->continue_read_cond) {
+	    	SDL_DestroyCond(is->continue_read_cond);
+	    	is->continue_read_cond = NULL;
+	    }
+
+	    if (is->prepare_mutex) {
+	    	SDL_DestroyMutex(is->prepare_mutex);
+	    	is->prepare_mutex = NULL;
+	    }
+
+	    if (is->prepare_cond) {
+	    	SDL_DestroyCond(is->prepare_cond);
+	    	is->prepare_cond = NULL;
+	    }
+	    is->prepare_done = 0;
+	    is->prepare_status = NO_ERROR;
+
 	    if (is->video_refresh_tid) {
 	    	free(is->video_refresh_tid);
 	    	is->video_refresh_tid = NULL;
@@ -1661,18 +2907,34 @@ void clear_l(VideoState **ps) {
 	    	is->parse_tid = NULL;
 	    }
 
+	    if (is->index_tid) {
+	    	free(is->index_tid);
+	    	is->index_tid = NULL;
+	    }
+
 	    if (is->video_tid) {
 	    	free(is->video_tid);
 	    	is->video_tid = NULL;
 	    }
 
+	    if (is->audio_tid) {
+	    	free(is->audio_tid);
+	    	is->audio_tid = NULL;
+	    }
+
+	    pcm_ring_destroy(&is->pcm_ring);
+	    seek_index_close(&is->seek_index);
+	    seek_index_close(&is->index_scan);
+	    SDL_AtomicSet(&is->index_scanned, 0);
+	    is->seek_indexing = 0;
+	    is->audio_underruns = 0;
+	    is->audio_drift = 0;
+	    is->audio_compensation = 0;
+
 	    //is->filename[0] = '\0';
 	    //is->quit = 0;
 
-	    if (is->io_context) {
-	    	avio_close(is->io_context);
-	    	is->io_context = NULL;
-	    }
+	    close_io(is);
 
 	    if (is->sws_ctx) {
 	    	sws_freeContext(is->sws_ctx);
@@ -1684,6 +2946,10 @@ void clear_l(VideoState **ps) {
 	    	is->sws_ctx_audio = NULL;
 	    }
 
+	    av_freep(&is->audio_buf1);
+	    is->audio_buf1_size = 0;
+	    is->audio_buf = NULL;
+
 	    if (is->audio_player) {
 	    	shutdown(&is->audio_player);
 	    	is->audio_player = NULL;
@@ -1716,11 +2982,15 @@ void clear_l(VideoState **ps) {
 	}
 }
 
-int seekTo_l(VideoState **ps, int msec) {
+int seekTo_l(VideoState **ps, int msec, int mode) {
 	VideoState *is = *ps;
 
+	if (mode != SEEK_PREVIOUS_SYNC && mode != SEEK_CLOSEST) {
+		return BAD_VALUE;
+	}
+
 	if (is) {
-		stream_seek(is, msec * 1000, msec * 1000, 0);
+		stream_seek(is, (int64_t) msec * 1000, (int64_t) msec * 1000, 0, mode == SEEK_CLOSEST);
 		return NO_ERROR;
 	}
 
@@ -1731,13 +3001,11 @@ int prepareAsync_l(VideoState **ps) {
 	VideoState *is = *ps;
 
     if (is != 0) {
-    	is->pictq_mutex = SDL_CreateMutex();
-        is->pictq_cond = SDL_CreateCond();
-
-    	is->video_refresh_tid = malloc(sizeof(*(is->video_refresh_tid)));
-    	pthread_create(is->video_refresh_tid, NULL, (void *) &video_refresh_timer, is);
-
-    	//schedule_refresh(is, 40);
+        is->prepare_start_time = av_gettime_relative();
+        is->continue_read_mutex = SDL_CreateMutex();
+        is->continue_read_cond = SDL_CreateCond();
+        is->prepare_mutex = SDL_CreateMutex();
+        is->prepare_cond = SDL_CreateCond();
 
     	is->av_sync_type = DEFAULT_AV_SYNC_TYPE;
     	is->parse_tid = malloc(sizeof(*(is->parse_tid)));
@@ -36,25 +36,65 @@
 #include <math.h>
 
 #include <pthread.h>
+#include <errno.h>
+#include <time.h>
 #include "audioplayer.h"
 #include "videoplayer.h"
 #include <unistd.h>
 #include "Errors.h"
 
 #include "ffmpeg_utils.h"
+#include "packet_queue.h"
+#include "pcm_ring.h"
+#include "seek_index.h"
+#include "cache_io.h"
+#include "readahead_io.h"
+#include "io_utils.h"
 
 #define SDL_AUDIO_BUFFER_SIZE 1024
-#define MAX_AUDIO_FRAME_SIZE 192000
-#define MAX_AUDIOQ_SIZE (5 * 16 * 1024)
-#define MAX_VIDEOQ_SIZE (5 * 256 * 1024)
+#define PCM_RING_MS 200
+#define MAX_QUEUE_SIZE (15 * 1024 * 1024)
+/* retry interval of a source with nothing to read, doubled up to the max */
+#define MIN_READ_RETRY_MS 10
+#define MAX_READ_RETRY_MS 200
+#define DEFAULT_MIN_BUFFER_MS 2000
+#define DEFAULT_MAX_BUFFER_MS 5000
+#define DEFAULT_PREPARE_BUFFER_MS 500
+#define DEFAULT_CACHE_SIZE_MB 100
+#define DEFAULT_AUDIO_FRAMES_PER_BUFFER 1024
+#define MIN_AUDIO_FRAMES_PER_BUFFER 64
+#define MAX_AUDIO_FRAMES_PER_BUFFER 16384
+#define MAX_DECODER_THREAD_COUNT 16
+/* probing limits of the fast start mode, for the ones left unset */
+#define FAST_START_PROBE_SIZE (64 * 1024)
+#define FAST_START_ANALYZE_DURATION_MS 500
+#define FAST_START_FPS_PROBE_SIZE 3
+/* FFmpeg's own default, used when a bounded probe has to be redone */
+#define DEFAULT_PROBE_SIZE 5000000
+/* FFmpeg rejects anything smaller */
+#define MIN_PROBE_SIZE 32
+#define MAX_FORMAT_HINT_LENGTH 32
+#define MAX_SEEK_INDEX_DIR_LENGTH 256
+#define MAX_CACHE_DIR_LENGTH 256
+#define MIN_READAHEAD_KB 128
+#define MAX_READAHEAD_KB (64 * 1024)
+/* audio is indexed at this spacing, in microseconds, video at every key frame */
+#define SEEK_INDEX_AUDIO_INTERVAL 1000000
 #define AV_SYNC_THRESHOLD 0.01
 #define AV_NOSYNC_THRESHOLD 10.0
+/* the video decoder's discard level is revised this often, in microseconds */
+#define LAG_CHECK_INTERVAL 1000000
+/* exact seeks decode packets without a duration in full this close to the target, in microseconds */
+#define CATCHUP_MARGIN 100000
+#define LAG_DROPS_PER_INTERVAL 4
+#define VIDEO_SKIP_LEVEL_MAX 3
 #define SAMPLE_CORRECTION_PERCENT_MAX 10
 #define AUDIO_DIFF_AVG_NB 20
 #define FF_ALLOC_EVENT   (24)
 #define FF_REFRESH_EVENT (24 + 1)
 #define FF_QUIT_EVENT (24 + 2)
-#define VIDEO_PICTURE_QUEUE_SIZE 1
+#define VIDEO_PICTURE_QUEUE_SIZE_MAX 16
+#define DEFAULT_VIDEO_PICTURE_QUEUE_SIZE 3
 #define DEFAULT_AV_SYNC_TYPE AV_SYNC_VIDEO_MASTER
 
 typedef enum media_event_type {
@@ -81,6 +121,89 @@ typedef enum media_info_type {
 	MEDIA_INFO_SUBTITLE_TIMED_OUT    = 902,
 } media_info_type;
 
+/* Do not change these values without updating their counterparts
+ * in FFmpegMediaPlayer.java!
+ */
+typedef enum media_parameter_keys {
+	// buffering targets, per stream
+	KEY_PARAMETER_MIN_BUFFER_MS      = 2000,
+	KEY_PARAMETER_MAX_BUFFER_MS      = 2001,
+	// audio output
+	KEY_PARAMETER_AUDIO_FRAMES_PER_BUFFER = 2002,
+	// video output
+	KEY_PARAMETER_VIDEO_PICTURE_QUEUE_SIZE = 2003,
+	KEY_PARAMETER_VIDEO_RENDER_MODE  = 2004,
+	// video decoder
+	KEY_PARAMETER_DECODER_THREAD_COUNT = 2005,
+	KEY_PARAMETER_DECODER_THREAD_TYPE = 2006,
+	// synchronous prepare
+	KEY_PARAMETER_PREPARE_TIMEOUT_MS = 2007,
+	// stream probing
+	KEY_PARAMETER_FAST_START         = 2008,
+	KEY_PARAMETER_PROBE_SIZE         = 2009,
+	KEY_PARAMETER_ANALYZE_DURATION_MS = 2010,
+	KEY_PARAMETER_FPS_PROBE_SIZE     = 2011,
+	KEY_PARAMETER_FORMAT_HINT        = 2012, // string
+	// readiness
+	KEY_PARAMETER_PREPARE_POLICY     = 2013,
+	KEY_PARAMETER_PREPARE_BUFFER_MS  = 2014,
+	KEY_PARAMETER_SEEK_INDEX_DIR     = 2015,
+	KEY_PARAMETER_CACHE_DIR          = 2016,
+	KEY_PARAMETER_CACHE_SIZE_MB      = 2017,
+	KEY_PARAMETER_READAHEAD_KB       = 2018,
+	KEY_PARAMETER_READAHEAD_BURST    = 2019,
+	// read only statistics
+	KEY_PARAMETER_AUDIO_BUFFERED_MS  = 2100,
+	KEY_PARAMETER_VIDEO_BUFFERED_MS  = 2101,
+	KEY_PARAMETER_READ_WAKEUPS       = 2102,
+	KEY_PARAMETER_SEEK_LATENCY_MS    = 2103,
+	KEY_PARAMETER_AUDIO_UNDERRUNS    = 2104,
+	KEY_PARAMETER_AUDIO_DRIFT_MS     = 2105,
+	KEY_PARAMETER_AUDIO_COMPENSATION_PPM = 2106,
+	KEY_PARAMETER_VIDEO_FRAMES_DROPPED = 2107,
+	KEY_PARAMETER_VIDEO_SKIP_LEVEL   = 2108,
+	KEY_PARAMETER_VIDEO_DECODE_FPS   = 2109,
+	KEY_PARAMETER_DECODER_THREADS    = 2110,
+	KEY_PARAMETER_VIDEO_REFRESH_WAKEUPS = 2111,
+	KEY_PARAMETER_PREPARE_LATENCY_MS = 2112,
+	KEY_PARAMETER_PROBE_TIME_MS      = 2113,
+	KEY_PARAMETER_PROBE_FALLBACK     = 2114,
+	KEY_PARAMETER_SEEK_DISPLAY_LATENCY_MS = 2115,
+	KEY_PARAMETER_SEEKS_COALESCED    = 2116,
+	KEY_PARAMETER_SEEK_CATCHUP_FRAMES = 2117,
+	KEY_PARAMETER_SEEK_INDEX_ENTRIES = 2118,
+	KEY_PARAMETER_CACHE_READ_KB      = 2119,
+	KEY_PARAMETER_NETWORK_READ_KB    = 2120,
+	KEY_PARAMETER_READAHEAD_BUFFERED_KB = 2121,
+	KEY_PARAMETER_READAHEAD_STALLS   = 2122,
+	KEY_PARAMETER_READAHEAD_BURSTS   = 2123,
+} media_parameter_keys;
+
+/* values of KEY_PARAMETER_VIDEO_RENDER_MODE */
+typedef enum video_render_mode {
+	VIDEO_RENDER_MODE_COPY   = 0, // convert when decoded, copy into the window when shown
+	VIDEO_RENDER_MODE_DIRECT = 1, // convert into the locked window buffer when shown
+} video_render_mode;
+
+/* values of KEY_PARAMETER_PREPARE_POLICY */
+typedef enum prepare_policy {
+	PREPARE_POLICY_BUFFERED    = 0, // every stream has prepare_buffer_ms
+	PREPARE_POLICY_FIRST_FRAME = 1, // video is ready with its first picture
+} prepare_policy;
+
+/* seekTo() modes, same values as android.media.MediaPlayer */
+typedef enum seek_mode {
+	SEEK_PREVIOUS_SYNC = 0, // the key frame at or before the target
+	SEEK_CLOSEST       = 3, // the frame at the target, decoded from that key frame
+} seek_mode;
+
+/* values of KEY_PARAMETER_DECODER_THREAD_TYPE */
+typedef enum decoder_thread_type {
+	DECODER_THREAD_TYPE_AUTO  = 0, // frame or slice, whichever the codec supports
+	DECODER_THREAD_TYPE_FRAME = 1,
+	DECODER_THREAD_TYPE_SLICE = 2,
+} decoder_thread_type;
+
 typedef int media_error_type;
 static const media_error_type MEDIA_ERROR_UNKNOWN = 1;
 static const media_error_type MEDIA_ERROR_SERVER_DIED = 100;
@@ -97,30 +220,46 @@ typedef enum {
     MEDIA_PLAYER_PLAYBACK_COMPLETE  = 1 << 7
 } media_player_states;
 
-typedef struct PacketQueue {
-  SDL_Window     *screen;
-  SDL_Renderer *renderer;
-  SDL_Texture *texture;
-  int initialized;
-  AVPacketList *first_pkt, *last_pkt;
-  int nb_packets;
-  int size;
-  SDL_mutex *mutex;
-  SDL_cond *cond;
-} PacketQueue;
+/*
+ * Player settings that can be changed through setParameter(). The
+ * MediaPlayer keeps its own copy so they survive setDataSource()/reset().
+ */
+typedef struct PlayerParameters {
+  int min_buffer_ms; /* read again when a stream holds less than this */
+  int max_buffer_ms; /* stop reading once every stream holds this much */
+  int audio_frames_per_buffer; /* size of each buffer handed to OpenSL ES */
+  int video_picture_queue_size; /* decoded pictures waiting for display */
+  int video_render_mode; /* one of video_render_mode */
+  int decoder_thread_count; /* video decoder threads, 0 for one per core */
+  int decoder_thread_type; /* one of decoder_thread_type */
+  int prepare_timeout_ms; /* how long prepare() waits, 0 for no limit */
+  int fast_start; /* bounded probing, see FAST_START_* */
+  int probe_size; /* bytes, 0 for the default */
+  int analyze_duration_ms; /* 0 for the default */
+  int fps_probe_size; /* frames, 0 for the default */
+  char format_hint[MAX_FORMAT_HINT_LENGTH]; /* demuxer name, empty to probe */
+  int prepare_policy; /* one of prepare_policy */
+  int prepare_buffer_ms; /* media each stream needs before MEDIA_PREPARED */
+  char seek_index_dir[MAX_SEEK_INDEX_DIR_LENGTH]; /* where seek indexes are kept, empty for none */
+  char cache_dir[MAX_CACHE_DIR_LENGTH]; /* where network sources are cached, empty for none */
+  int cache_size_mb; /* cache_dir is kept under this */
+  int readahead_kb; /* ring between network and demuxer, 0 for none */
+  int readahead_burst; /* fill the ring in bursts, see ReadAhead */
+} PlayerParameters;
 
 typedef struct Picture {
 	int linesize;
-	void *buffer;
+	void *buffer; /* RGBA, allocated with the picture */
 } Picture;
 
 typedef struct VideoPicture {
   // uncomment for video
   Picture *bmp;
-  //AVFrame *bmp;
+  AVFrame *frame; /* decoded frame, direct rendering only */
   int width, height; /* source height & width */
   int allocated;
   double pts;
+  int serial;
 } VideoPicture;
 
 typedef struct VideoState {
@@ -134,22 +273,52 @@ typedef struct VideoState {
   int             seek_flags;
   int64_t         seek_pos;
   int64_t         seek_rel;
+  int             seek_request_serial; ///<bumped by every stream_seek()
+  int             seek_serial; ///<request the read thread is working on
+  int             seeking; ///<inside avformat_seek_file()
+  int             seeks_coalesced; ///<targets replaced before they were reached
+  int             video_flush_count; ///<pictq_serial the last flush leads to
+  int             seek_display_serial; ///<serial of the pictures after the last seek
+  int64_t         seek_display_start;
+  int64_t         seek_display_latency; ///<time from the last seek request to its first picture
+  int             seek_accurate; ///<pending seek is exact, see SEEK_CLOSEST
+  int64_t         seek_catchup_target; ///<exact target of the last flush, AV_NOPTS_VALUE for none
+  int64_t         audio_catchup; ///<audio decoded up to here is not played
+  int64_t         video_catchup; ///<video decoded up to here is not shown
+  int             catchup_frames; ///<pictures decoded and discarded by the last exact seek
+  SeekIndex       seek_index;
+  int             seek_indexing; ///<the source has no index of its own, seek_index is in use
+  SeekIndex       index_scan; ///<built by index_tid, adopted by the read thread
+  SDL_atomic_t    index_scanned; ///<index_scan covers the whole source
+  AVInputFormat   *index_format; ///<demuxer index_tid opens the source with
+  CacheIO         *cache_io; ///<io_context is its pb, NULL when not caching
+  ReadAhead       *readahead; ///<io_context is its pb, NULL when not reading ahead
+  int64_t         seek_start_time;
+  int64_t         seek_latency; ///<time from the last seek request to its first packet
+  int64_t         prepare_start_time;
+  int64_t         prepare_latency; ///<time from prepareAsync() to MEDIA_PREPARED
+  int64_t         probe_time; ///<time spent opening the input and reading stream info
+  int             probe_fallback; ///<a bounded probe was incomplete and redone in full
 
   double          audio_clock;
   AVStream        *audio_st;
   PacketQueue     audioq;
   AVFrame         audio_frame;
-  uint8_t         audio_buf[(MAX_AUDIO_FRAME_SIZE * 3) / 2];
+  uint8_t         *audio_buf; /* the last decoded samples, in audio_buf1 or the frame */
+  uint8_t         *audio_buf1; /* resampler output, grows as needed */
+  unsigned int    audio_buf1_size;
   unsigned int    audio_buf_size;
   unsigned int    audio_buf_index;
   AVPacket        audio_pkt;
-  uint8_t         *audio_pkt_data;
-  int             audio_pkt_size;
+  PcmRing         pcm_ring;
+  int             audio_underruns;
   int             audio_hw_buf_size;
   double          audio_diff_cum; /* used for AV difference average computation */
   double          audio_diff_avg_coef;
   double          audio_diff_threshold;
   int             audio_diff_avg_count;
+  double          audio_drift; /* averaged audio - master clock difference, seconds */
+  int             audio_compensation; /* applied to the last frame, parts per million */
   double          frame_timer;
   double          frame_last_pts;
   double          frame_last_delay;
@@ -158,13 +327,35 @@ typedef struct VideoState {
   int64_t         video_current_pts_time;  ///<time (av_gettime) at which we updated video_current_pts - used to have running video pts
   AVStream        *video_st;
   PacketQueue     videoq;
-  VideoPicture    pictq[VIDEO_PICTURE_QUEUE_SIZE];
+  VideoPicture    pictq[VIDEO_PICTURE_QUEUE_SIZE_MAX];
   int             pictq_size, pictq_rindex, pictq_windex;
+  int             pictq_capacity; /* slots in use, from the parameters */
+  int             pictq_serial; /* bumped by the decoder when it flushes */
+  int             render_mode; /* from the parameters, fixed while playing */
+  int             video_current_serial; /* serial of the picture shown last */
+  int             frames_dropped_early; /* by the decoder, before conversion */
+  int             frames_dropped_late; /* by the display thread */
+  int             skip_level; /* 0 to VIDEO_SKIP_LEVEL_MAX, see set_skip_level() */
+  int64_t         lag_check_time;
+  int             lag_check_drops;
+  int             frames_decoded;
+  int64_t         video_decode_time; /* spent in the decoder, microseconds */
   SDL_mutex       *pictq_mutex;
   SDL_cond        *pictq_cond;
+  pthread_mutex_t refresh_mutex; /* wakes the display thread, see wait_refresh() */
+  pthread_cond_t  refresh_cond;
+  int             refresh_initialized;
+  int             refresh_signaled;
+  int             refresh_wakeups;
+  SDL_mutex       *continue_read_mutex;
+  SDL_cond        *continue_read_cond;
+  SDL_atomic_t    read_waiting;
+  int             read_wakeups;
   pthread_t       *parse_tid;
   pthread_t       *video_tid;
+  pthread_t       *audio_tid;
   pthread_t       *video_refresh_tid;
+  pthread_t       *index_tid;
 
   char            filename[1024];
   int             quit;
@@ -183,6 +374,10 @@ typedef struct VideoState {
   int64_t offset;
 
   int prepare_sync;
+  SDL_mutex       *prepare_mutex; /* signalled once prepared or failed */
+  SDL_cond        *prepare_cond;
+  int             prepare_done;
+  int             prepare_status;
 
   void (*notify_callback) (void*, int, int, int, int);
   void* clazz;
@@ -200,6 +395,8 @@ typedef struct VideoState {
   void *native_window;
 
   int stream_type;
+
+  PlayerParameters params;
 } VideoState;
 
 struct AVDictionary {
@@ -240,7 +437,7 @@ int pause_l(VideoState **ps);
 int isPlaying(VideoState **ps);
 int getVideoWidth(VideoState **ps, int *w);
 int getVideoHeight(VideoState **ps, int *h);
-int seekTo(VideoState **ps, int msec);
+int seekTo(VideoState **ps, int msec, int mode);
 int getCurrentPosition(VideoState **ps, int *msec);
 int getDuration(VideoState **ps, int *msec);
 int reset(VideoState **ps);
@@ -251,9 +448,20 @@ int setVolume(VideoState **ps, float leftVolume, float rightVolume);
 void notify(VideoState *is, int msg, int ext1, int ext2);
 void notify_from_thread(VideoState *is, int msg, int ext1, int ext2);
 int setNextPlayer(VideoState **ps, VideoState *next);
+void initParameters(PlayerParameters *params);
+int setPlayerParameter(PlayerParameters *params, int key, int value);
+int getPlayerParameter(PlayerParameters *params, int key, int *value);
+int isStringParameter(int key);
+int setPlayerStringParameter(PlayerParameters *params, int key, const char *value);
+int getPlayerStringParameter(PlayerParameters *params, int key, const char **value);
+int setParameters(VideoState **ps, PlayerParameters *params);
+int setParameter(VideoState **ps, int key, int value);
+int getParameter(VideoState **ps, int key, int *value);
+int setStringParameter(VideoState **ps, int key, const char *value);
+int getStringParameter(VideoState **ps, int key, const char **value);
 
 void clear_l(VideoState **ps);
-int seekTo_l(VideoState **ps, int msec);
+int seekTo_l(VideoState **ps, int msec, int mode);
 int prepareAsync_l(VideoState **ps);
 int getDuration_l(VideoState **ps, int *msec);
 
@@ -0,0 +1,34 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef IO_UTILS_H_
+#define IO_UTILS_H_
+
+#include <libavformat/avio.h>
+
+/*
+ * An interrupted read or seek leaves the error and end of file flags set,
+ * although the connection is still usable. Clears them before pb is used
+ * again.
+ */
+static inline void io_clear_interrupt(AVIOContext *pb) {
+  pb->error = 0;
+  pb->eof_reached = 0;
+}
+
+#endif /* IO_UTILS_H_ */
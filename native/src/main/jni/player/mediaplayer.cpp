@@ -55,6 +55,7 @@ MediaPlayer::MediaPlayer()
     //mLockThreadId = 0;
     mAudioSessionId = 0;
     mSendLevel = 0;
+    ::initParameters(&mParameters);
 }
 
 MediaPlayer::~MediaPlayer()
@@ -126,6 +127,7 @@ status_t MediaPlayer::setDataSource(VideoState *player)
 
         ::clear_l(&player);
 	    ::setListener(&player, this, notifyListener);
+	    ::setParameters(&player, &mParameters);
         clear_l();
         p = state;
         state = player;
@@ -235,16 +237,21 @@ status_t MediaPlayer::prepare()
 	return -EALREADY;
 	}
 	mPrepareSync = true;
+	// returns once the source is prepared, failed or the timeout expired
 	status_t ret = ::prepare(&state);
 	//status_t ret = prepareAsync_l();
+	mPrepareSync = false;
+	if (ret == TIMED_OUT) {
+	// ::prepare() has reset the player, the data source has to be set again
+	mCurrentState = MEDIA_PLAYER_IDLE;
+	}
 	if (ret != NO_ERROR) {
 	//mLockThreadId = 0;
 	return ret;
 	}
-	if (mPrepareSync) {
-	//mSignal.wait(mLock); // wait for prepare done
-	mPrepareSync = false;
-	}
+	// MEDIA_PREPARED is delivered from another thread and may still be on its way
+	mCurrentState = MEDIA_PLAYER_PREPARED;
+	mPrepareStatus = NO_ERROR;
 	//__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "prepare complete - status=%d", mPrepareStatus);
 	//mLockThreadId = 0;
 	return mPrepareStatus;
@@ -399,7 +406,7 @@ status_t MediaPlayer::getDuration(int *msec)
     return getDuration_l(msec);
 }
 
-status_t MediaPlayer::seekTo_l(int msec)
+status_t MediaPlayer::seekTo_l(int msec, int mode)
 {
 	//__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "seekTo %d", msec);
     if ((state != 0) && ( mCurrentState & ( MEDIA_PLAYER_STARTED | MEDIA_PLAYER_PREPARED | MEDIA_PLAYER_PAUSED | MEDIA_PLAYER_PLAYBACK_COMPLETE) ) ) {
@@ -414,23 +421,20 @@ status_t MediaPlayer::seekTo_l(int msec)
         mCurrentPosition = msec;
         if (mSeekPosition < 0) {
             getDuration_l(NULL);
-            mSeekPosition = msec;
-            return ::seekTo(&state, msec);
-        }
-        else {
-        	//__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Seek in progress - queue up seekTo[%d]", msec);
-            return NO_ERROR;
         }
+        // the player replaces a seek in progress, only the last one completes
+        mSeekPosition = msec;
+        return ::seekTo(&state, msec, mode);
     }
     //__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Attempt to perform seekTo in wrong state: mPlayer=%p, mCurrentState=%u", state, mCurrentState);
     return INVALID_OPERATION;
 }
 
-status_t MediaPlayer::seekTo(int msec)
+status_t MediaPlayer::seekTo(int msec, int mode)
 {
     //mLockThreadId = getThreadId();
     Mutex::Autolock _l(mLock);
-    status_t result = seekTo_l(msec);
+    status_t result = seekTo_l(msec, mode);
     //mLockThreadId = 0;
 
     return result;
@@ -599,6 +603,11 @@ void MediaPlayer::notify(int msg, int ext1, int ext2, int fromThread)
         break;
     case MEDIA_PREPARED:
     	//__android_log_write(ANDROID_LOG_VERBOSE, LOG_TAG, "prepared");
+        // left over from a prepare that was given up, by reset() or a timeout
+        if (mCurrentState == MEDIA_PLAYER_IDLE) {
+            send = false;
+            break;
+        }
         mCurrentState = MEDIA_PLAYER_PREPARED;
         if (mPrepareSync) {
         	//__android_log_write(ANDROID_LOG_VERBOSE, LOG_TAG, "signal application thread");
@@ -638,10 +647,10 @@ void MediaPlayer::notify(int msg, int ext1, int ext2, int fromThread)
         break;
     case MEDIA_SEEK_COMPLETE:
     	//__android_log_write(ANDROID_LOG_VERBOSE, LOG_TAG, "Received seek complete");
-        if (mSeekPosition != mCurrentPosition) {
-        	//__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Executing queued seekTo(%d)", mSeekPosition);
-            mSeekPosition = -1;
-            seekTo_l(mCurrentPosition);
+        // ext1 is the target, a seekTo() may have come in while it was delivered
+        if (ext1 != mSeekPosition) {
+        	//__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "Dropping stale seek complete for %d", ext1);
+            send = false;
         }
         else {
         	//__android_log_write(ANDROID_LOG_VERBOSE, LOG_TAG, "All seeks complete - return to regularly scheduled program");
@@ -680,6 +689,50 @@ status_t MediaPlayer::setNextMediaPlayer(const MediaPlayer* next) {
     return ::setNextPlayer(&state, next == NULL ? NULL : next->state);
 }
 
+status_t MediaPlayer::setParameter(int key, int value)
+{
+    //__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "MediaPlayer::setParameter(%d, %d)", key, value);
+    Mutex::Autolock _l(mLock);
+    // cache, the next data source starts out with the same settings
+    status_t ret = ::setPlayerParameter(&mParameters, key, value);
+    if (ret == NO_ERROR && state != 0) {
+        return ::setParameter(&state, key, value);
+    }
+    return ret;
+}
+
+status_t MediaPlayer::getParameter(int key, int *value)
+{
+    //__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "MediaPlayer::getParameter(%d)", key);
+    Mutex::Autolock _l(mLock);
+    if (state != 0) {
+        return ::getParameter(&state, key, value);
+    }
+    return ::getPlayerParameter(&mParameters, key, value);
+}
+
+status_t MediaPlayer::setParameter(int key, const char *value)
+{
+    //__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "MediaPlayer::setParameter(%d, %s)", key, value);
+    Mutex::Autolock _l(mLock);
+    status_t ret = ::setPlayerStringParameter(&mParameters, key, value);
+    if (ret == NO_ERROR && state != 0) {
+        return ::setStringParameter(&state, key, value);
+    }
+    return ret;
+}
+
+// value stays valid until the parameter is set again
+status_t MediaPlayer::getParameter(int key, const char **value)
+{
+    //__android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "MediaPlayer::getParameter(%d)", key);
+    Mutex::Autolock _l(mLock);
+    if (state != 0) {
+        return ::getStringParameter(&state, key, value);
+    }
+    return ::getPlayerStringParameter(&mParameters, key, value);
+}
+
 /*static*/ /*sp<IMemory> MediaPlayer::decode(const char* url, uint32_t *pSampleRate, int* pNumChannels, int* pFormat)
 {
     LOGV("decode(%s)", url);
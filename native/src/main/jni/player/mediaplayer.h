@@ -82,7 +82,7 @@ public:
             bool            isPlaying();
             status_t        getVideoWidth(int *w);
             status_t        getVideoHeight(int *h);
-            status_t        seekTo(int msec);
+            status_t        seekTo(int msec, int mode = SEEK_PREVIOUS_SYNC);
             status_t        getCurrentPosition(int *msec);
             status_t        getDuration(int *msec);
             status_t        reset();
@@ -96,12 +96,16 @@ public:
             status_t        setAuxEffectSendLevel(float level);
             int             attachAuxEffect(int effectId);
             status_t        setNextMediaPlayer(const MediaPlayer* player);
+            status_t        setParameter(int key, int value);
+            status_t        getParameter(int key, int *value);
+            status_t        setParameter(int key, const char *value);
+            status_t        getParameter(int key, const char **value);
 
     VideoState*                      state;
         
 private:
             void            clear_l();
-            status_t        seekTo_l(int msec);
+            status_t        seekTo_l(int msec, int mode);
             status_t        prepareAsync_l();
             status_t        getDuration_l(int *msec);
             status_t        setDataSource(VideoState *state);
@@ -127,6 +131,7 @@ private:
     int                         mVideoHeight;
     int                         mAudioSessionId;
     float                       mSendLevel;
+    PlayerParameters            mParameters;
     };
 
 #endif // MEDIAPLAYER_H
@@ -0,0 +1,320 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <packet_queue.h>
+
+/*
+ * Plain loads and stores for the indices and counters. Every field has a
+ * single writer, the barriers order the slot contents against the index
+ * that publishes them.
+ */
+static int load_acquire(SDL_atomic_t *a) {
+  int value = *(volatile int *) &a->value;
+  SDL_MemoryBarrierAcquire();
+  return value;
+}
+
+static void store_release(SDL_atomic_t *a, int value) {
+  SDL_MemoryBarrierRelease();
+  *(volatile int *) &a->value = value;
+}
+
+static unsigned int queue_count(PacketQueue *q) {
+  return (unsigned int) load_acquire(&q->windex) - (unsigned int) load_acquire(&q->rindex);
+}
+
+/*
+ * Only take the lock if the other side announced that it is parked.
+ * SDL_AtomicGet() is a full barrier, so the index that was just published
+ * is visible before the flag is read.
+ */
+static void queue_wake(PacketQueue *q, SDL_atomic_t *waiting) {
+  if (SDL_AtomicGet(waiting)) {
+    SDL_LockMutex(q->mutex);
+    SDL_CondSignal(q->cond);
+    SDL_UnlockMutex(q->mutex);
+  }
+}
+
+/*
+ * Duration of a packet in microseconds. Demuxers that leave the duration
+ * unset get the distance to the previous packet's dts instead.
+ */
+static int packet_duration(PacketQueue *q, AVPacket *pkt) {
+  int64_t duration = 0;
+
+  if (q->time_base.num <= 0 || q->time_base.den <= 0) {
+    return 0;
+  }
+
+  if (pkt->duration > 0) {
+    duration = av_rescale_q(pkt->duration, q->time_base, AV_TIME_BASE_Q);
+  } else if (pkt->dts != AV_NOPTS_VALUE && q->last_dts != AV_NOPTS_VALUE &&
+      pkt->dts > q->last_dts) {
+    duration = av_rescale_q(pkt->dts - q->last_dts, q->time_base, AV_TIME_BASE_Q);
+  }
+
+  if (pkt->dts != AV_NOPTS_VALUE) {
+    q->last_dts = pkt->dts;
+  }
+
+  /* anything longer is a timestamp discontinuity, not buffered media */
+  return duration > 0 && duration < 10 * AV_TIME_BASE ? (int) duration : 0;
+}
+
+static int queue_push(PacketQueue *q, AVPacket *pkt) {
+  PacketQueueSlot *slot;
+  unsigned int windex;
+
+  if (queue_count(q) >= q->capacity) {
+    SDL_LockMutex(q->mutex);
+    SDL_AtomicSet(&q->writer_waiting, 1);
+    while (queue_count(q) >= q->capacity && !load_acquire(&q->abort_request)) {
+      SDL_CondWait(q->cond, q->mutex);
+    }
+    SDL_AtomicSet(&q->writer_waiting, 0);
+    SDL_UnlockMutex(q->mutex);
+  }
+
+  if (load_acquire(&q->abort_request)) {
+    return -1;
+  }
+
+  windex = (unsigned int) q->windex.value;
+  slot = &q->slots[windex & (q->capacity - 1)];
+  slot->serial = q->serial.value;
+  slot->duration = packet_duration(q, pkt);
+  av_packet_move_ref(&slot->pkt, pkt);
+  store_release(&q->in_bytes, q->in_bytes.value + slot->pkt.size);
+  store_release(&q->in_duration, q->in_duration.value + slot->duration);
+
+  /* publishing the write index hands the slot over to the consumer */
+  store_release(&q->windex, windex + 1);
+  queue_wake(q, &q->reader_waiting);
+  return 0;
+}
+
+static AVBufferRef *pool_alloc(void *opaque, int size) {
+  PacketQueue *q = opaque;
+
+  q->nb_allocs++;
+  return av_buffer_alloc(size);
+}
+
+/*
+ * Gives a packet that points into demuxer owned memory a reference counted
+ * payload, taken from the smallest pool that fits it.
+ */
+static int packet_make_pooled(PacketQueue *q, AVPacket *pkt) {
+  AVBufferRef *buf;
+  int size = pkt->size + AV_INPUT_BUFFER_PADDING_SIZE;
+  int i;
+
+  for (i = 0; i < PACKET_POOL_COUNT && (1 << (PACKET_POOL_MIN_SHIFT + i)) < size; i++);
+
+  if (i < PACKET_POOL_COUNT) {
+    if (!q->pools[i]) {
+      q->pools[i] = av_buffer_pool_init2(1 << (PACKET_POOL_MIN_SHIFT + i), q, pool_alloc, NULL);
+      if (!q->pools[i]) {
+        return AVERROR(ENOMEM);
+      }
+    }
+    buf = av_buffer_pool_get(q->pools[i]);
+  } else {
+    /* larger than anything worth keeping around */
+    buf = pool_alloc(q, size);
+  }
+
+  if (!buf) {
+    return AVERROR(ENOMEM);
+  }
+
+  memcpy(buf->data, pkt->data, pkt->size);
+  memset(buf->data + pkt->size, 0, AV_INPUT_BUFFER_PADDING_SIZE);
+  pkt->buf = buf;
+  pkt->data = buf->data;
+  q->nb_copies++;
+  return 0;
+}
+
+int packet_queue_init(PacketQueue *q) {
+  memset(q, 0, sizeof(PacketQueue));
+  q->capacity = PACKET_QUEUE_CAPACITY;
+  q->slots = av_mallocz_array(q->capacity, sizeof(PacketQueueSlot));
+  q->last_dts = AV_NOPTS_VALUE;
+  q->mutex = SDL_CreateMutex();
+  q->cond = SDL_CreateCond();
+  if (!q->slots || !q->mutex || !q->cond) {
+    packet_queue_destroy(q);
+    return -1;
+  }
+  q->initialized = 1;
+  return 0;
+}
+
+void packet_queue_destroy(PacketQueue *q) {
+  unsigned int rindex, windex;
+  int i;
+
+  if (q->slots) {
+    windex = (unsigned int) q->windex.value;
+    for (rindex = (unsigned int) q->rindex.value; rindex != windex; rindex++) {
+      av_packet_unref(&q->slots[rindex & (q->capacity - 1)].pkt);
+    }
+  }
+  av_freep(&q->slots);
+
+  /* buffers still held by a decoder keep their pool alive until released */
+  for (i = 0; i < PACKET_POOL_COUNT; i++) {
+    av_buffer_pool_uninit(&q->pools[i]);
+  }
+
+  if (q->mutex) {
+    SDL_DestroyMutex(q->mutex);
+  }
+
+  if (q->cond) {
+    SDL_DestroyCond(q->cond);
+  }
+
+  memset(q, 0, sizeof(PacketQueue));
+}
+
+/* takes over the caller's reference, pkt is blank on return */
+int packet_queue_put(PacketQueue *q, AVPacket *pkt) {
+  if (!pkt->buf && pkt->data && packet_make_pooled(q, pkt) < 0) {
+    av_packet_unref(pkt);
+    return -1;
+  }
+
+  if (queue_push(q, pkt) < 0) {
+    av_packet_unref(pkt);
+    return -1;
+  }
+  return 0;
+}
+
+/* the flush packet is a marker, a shallow copy is queued and never unref'd */
+int packet_queue_put_flush(PacketQueue *q, AVPacket *flush_pkt) {
+  AVPacket pkt = *flush_pkt;
+
+  return queue_push(q, &pkt);
+}
+
+/* an empty packet, the decoder is drained when it gets one */
+int packet_queue_put_nullpacket(PacketQueue *q) {
+  AVPacket pkt;
+
+  av_init_packet(&pkt);
+  pkt.data = NULL;
+  pkt.size = 0;
+  return queue_push(q, &pkt);
+}
+
+int packet_queue_get(PacketQueue *q, AVPacket *pkt, int block) {
+  PacketQueueSlot *slot;
+  unsigned int rindex;
+  int serial;
+
+  for (;;) {
+    if (load_acquire(&q->abort_request)) {
+      return -1;
+    }
+
+    if (queue_count(q) > 0) {
+      rindex = (unsigned int) q->rindex.value;
+      slot = &q->slots[rindex & (q->capacity - 1)];
+      *pkt = slot->pkt;
+      serial = slot->serial;
+      store_release(&q->out_bytes, q->out_bytes.value + pkt->size);
+      store_release(&q->out_duration, q->out_duration.value + slot->duration);
+
+      /* publishing the read index hands the slot back to the producer */
+      store_release(&q->rindex, rindex + 1);
+      queue_wake(q, &q->writer_waiting);
+
+      if (serial != load_acquire(&q->serial)) {
+        /* queued before the last flush, drop it */
+        av_packet_unref(pkt);
+        continue;
+      }
+      return 1;
+    }
+
+    if (!block) {
+      return 0;
+    }
+
+    SDL_LockMutex(q->mutex);
+    SDL_AtomicSet(&q->reader_waiting, 1);
+    while (queue_count(q) == 0 && !load_acquire(&q->abort_request)) {
+      SDL_CondWait(q->cond, q->mutex);
+    }
+    SDL_AtomicSet(&q->reader_waiting, 0);
+    SDL_UnlockMutex(q->mutex);
+  }
+}
+
+/*
+ * Called from the producer side. Everything queued so far becomes stale
+ * and is released by the consumer the next time it reads the queue.
+ */
+void packet_queue_flush(PacketQueue *q) {
+  q->last_dts = AV_NOPTS_VALUE;
+  store_release(&q->stale_bytes, q->in_bytes.value);
+  store_release(&q->stale_duration, q->in_duration.value);
+  store_release(&q->serial, q->serial.value + 1);
+}
+
+void packet_queue_abort(PacketQueue *q) {
+  SDL_AtomicSet(&q->abort_request, 1);
+
+  SDL_LockMutex(q->mutex);
+  SDL_CondBroadcast(q->cond);
+  SDL_UnlockMutex(q->mutex);
+}
+
+int packet_queue_nb_packets(PacketQueue *q) {
+  return (int) queue_count(q);
+}
+
+/*
+ * The in/out counters only grow (and may wrap), whatever lies between the
+ * flush mark and the producer's counter has not been consumed yet.
+ */
+static int queued_since_flush(SDL_atomic_t *in_counter, SDL_atomic_t *out_counter,
+    SDL_atomic_t *stale_counter) {
+  unsigned int in = (unsigned int) load_acquire(in_counter);
+  unsigned int out = (unsigned int) load_acquire(out_counter);
+  unsigned int stale = (unsigned int) load_acquire(stale_counter);
+
+  if ((int) (out - stale) < 0) {
+    out = stale;
+  }
+  return (int) (in - out) > 0 ? (int) (in - out) : 0;
+}
+
+/* number of payload bytes queued since the last flush */
+int packet_queue_size(PacketQueue *q) {
+  return queued_since_flush(&q->in_bytes, &q->out_bytes, &q->stale_bytes);
+}
+
+/* duration of the media queued since the last flush, in microseconds */
+int64_t packet_queue_duration(PacketQueue *q) {
+  return queued_since_flush(&q->in_duration, &q->out_duration, &q->stale_duration);
+}
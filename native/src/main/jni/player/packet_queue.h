@@ -0,0 +1,102 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef PACKET_QUEUE_H_
+#define PACKET_QUEUE_H_
+
+#include <libavcodec/avcodec.h>
+
+#include <SDL.h>
+#include <SDL_atomic.h>
+#include <SDL_mutex.h>
+
+/* number of packet slots in each queue, must be a power of two */
+#define PACKET_QUEUE_CAPACITY 1024
+
+/* payload pools come in power of two sizes from 1 KiB to 1 MiB */
+#define PACKET_POOL_MIN_SHIFT 10
+#define PACKET_POOL_COUNT 11
+
+/*
+ * Bounded single-producer/single-consumer packet queue.
+ *
+ * The demuxer thread is the only producer and the decoder (or audio
+ * callback) is the only consumer. Slots are preallocated and handed over
+ * through the read/write indices, so the common path takes no lock. Each
+ * index and byte counter is written by one side only, the other side just
+ * reads it. The mutex and condition are only used to park a thread while
+ * the queue is empty (consumer) or full (producer).
+ *
+ * Flushing is done lazily: packet_queue_flush() bumps the queue serial and
+ * the consumer drops every packet that was queued under an older serial.
+ *
+ * Besides payload bytes the queue keeps track of the media duration it
+ * holds, so the demuxer can buffer by time instead of by size.
+ *
+ * Packets are moved into the queue by reference. Payloads the demuxer did
+ * not reference count are copied once into a buffer from one of the
+ * per-queue pools, which is recycled when the decoder unrefs the packet.
+ */
+typedef struct PacketQueueSlot {
+  AVPacket pkt;
+  int serial;
+  int duration; /* microseconds */
+} PacketQueueSlot;
+
+typedef struct PacketQueue {
+  PacketQueueSlot *slots;
+  unsigned int capacity;
+  AVRational time_base;
+  int initialized;
+  SDL_mutex *mutex;
+  SDL_cond *cond;
+  SDL_atomic_t abort_request;
+
+  /* written by the producer */
+  SDL_atomic_t windex;
+  SDL_atomic_t in_bytes;
+  SDL_atomic_t in_duration;
+  SDL_atomic_t stale_bytes;
+  SDL_atomic_t stale_duration;
+  SDL_atomic_t serial;
+  SDL_atomic_t writer_waiting;
+  AVBufferPool *pools[PACKET_POOL_COUNT];
+  int nb_copies;
+  int nb_allocs;
+  int64_t last_dts;
+
+  /* written by the consumer */
+  SDL_atomic_t rindex;
+  SDL_atomic_t out_bytes;
+  SDL_atomic_t out_duration;
+  SDL_atomic_t reader_waiting;
+} PacketQueue;
+
+int packet_queue_init(PacketQueue *q);
+void packet_queue_destroy(PacketQueue *q);
+int packet_queue_put(PacketQueue *q, AVPacket *pkt);
+int packet_queue_put_flush(PacketQueue *q, AVPacket *flush_pkt);
+int packet_queue_put_nullpacket(PacketQueue *q);
+int packet_queue_get(PacketQueue *q, AVPacket *pkt, int block);
+void packet_queue_flush(PacketQueue *q);
+void packet_queue_abort(PacketQueue *q);
+int packet_queue_nb_packets(PacketQueue *q);
+int packet_queue_size(PacketQueue *q);
+int64_t packet_queue_duration(PacketQueue *q);
+
+#endif /* PACKET_QUEUE_H_ */
@@ -0,0 +1,161 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+
+#include <libavutil/common.h>
+#include <libavutil/mem.h>
+
+#include <pcm_ring.h>
+
+static int load_acquire(SDL_atomic_t *a) {
+  int value = *(volatile int *) &a->value;
+  SDL_MemoryBarrierAcquire();
+  return value;
+}
+
+static void store_release(SDL_atomic_t *a, int value) {
+  SDL_MemoryBarrierRelease();
+  *(volatile int *) &a->value = value;
+}
+
+static unsigned int ring_count(PcmRing *r) {
+  return (unsigned int) load_acquire(&r->windex) - (unsigned int) load_acquire(&r->rindex);
+}
+
+int pcm_ring_init(PcmRing *r, unsigned int min_bytes) {
+  memset(r, 0, sizeof(PcmRing));
+
+  r->capacity = 4096;
+  while (r->capacity < min_bytes) {
+    r->capacity <<= 1;
+  }
+
+  r->data = av_malloc(r->capacity);
+  r->space_sem = SDL_CreateSemaphore(0);
+  if (!r->data || !r->space_sem) {
+    pcm_ring_destroy(r);
+    return -1;
+  }
+  return 0;
+}
+
+void pcm_ring_destroy(PcmRing *r) {
+  av_freep(&r->data);
+
+  if (r->space_sem) {
+    SDL_DestroySemaphore(r->space_sem);
+  }
+
+  memset(r, 0, sizeof(PcmRing));
+}
+
+/*
+ * Copies len bytes into the ring, waiting for the reader to make room as
+ * needed. Returns -1 if the ring was aborted.
+ */
+int pcm_ring_write(PcmRing *r, const uint8_t *buf, int len) {
+  unsigned int windex, offset, space, chunk;
+
+  while (len > 0) {
+    if (load_acquire(&r->abort_request)) {
+      return -1;
+    }
+
+    space = r->capacity - ring_count(r);
+    if (space == 0) {
+      /* the flag is a full barrier, recheck before sleeping */
+      SDL_AtomicSet(&r->writer_waiting, 1);
+      if (r->capacity - ring_count(r) == 0 && !load_acquire(&r->abort_request)) {
+        SDL_SemWait(r->space_sem);
+      }
+      SDL_AtomicSet(&r->writer_waiting, 0);
+      continue;
+    }
+
+    windex = (unsigned int) r->windex.value;
+    offset = windex & (r->capacity - 1);
+    chunk = FFMIN((unsigned int) len, FFMIN(space, r->capacity - offset));
+    memcpy(r->data + offset, buf, chunk);
+    store_release(&r->windex, windex + chunk);
+
+    buf += chunk;
+    len -= chunk;
+  }
+  return 0;
+}
+
+/*
+ * Copies up to len bytes out of the ring and returns how many were copied.
+ * Never blocks, this runs on the audio sink's callback thread.
+ */
+int pcm_ring_read(PcmRing *r, uint8_t *buf, int len) {
+  unsigned int rindex, offset, count, chunk;
+  int serial, copied = 0;
+
+  /* skip what was written before the last flush, unless already played */
+  serial = load_acquire(&r->flush_serial);
+  if (serial != r->flush_seen) {
+    rindex = (unsigned int) load_acquire(&r->flush_index);
+    if ((int) (rindex - (unsigned int) r->rindex.value) > 0) {
+      store_release(&r->rindex, rindex);
+    }
+    r->flush_seen = serial;
+  }
+
+  count = ring_count(r);
+  rindex = (unsigned int) r->rindex.value;
+
+  while (len > 0 && count > 0) {
+    offset = rindex & (r->capacity - 1);
+    chunk = FFMIN((unsigned int) len, FFMIN(count, r->capacity - offset));
+    memcpy(buf, r->data + offset, chunk);
+
+    rindex += chunk;
+    count -= chunk;
+    buf += chunk;
+    len -= chunk;
+    copied += chunk;
+  }
+
+  if (copied > 0) {
+    store_release(&r->rindex, rindex);
+    if (SDL_AtomicGet(&r->writer_waiting)) {
+      SDL_SemPost(r->space_sem);
+    }
+  }
+  return copied;
+}
+
+/* called by the writer, everything written so far is dropped */
+void pcm_ring_flush(PcmRing *r) {
+  store_release(&r->flush_index, r->windex.value);
+  store_release(&r->flush_serial, r->flush_serial.value + 1);
+}
+
+void pcm_ring_abort(PcmRing *r) {
+  SDL_AtomicSet(&r->abort_request, 1);
+  if (r->space_sem) {
+    SDL_SemPost(r->space_sem);
+  }
+}
+
+/* bytes waiting to be played, including any not yet dropped by a flush */
+int pcm_ring_count(PcmRing *r) {
+  return (int) ring_count(r);
+}
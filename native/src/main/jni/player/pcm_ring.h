@@ -0,0 +1,63 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef PCM_RING_H_
+#define PCM_RING_H_
+
+#include <stdint.h>
+
+#include <SDL.h>
+#include <SDL_atomic.h>
+#include <SDL_mutex.h>
+
+/*
+ * Single-producer/single-consumer byte ring for decoded PCM.
+ *
+ * The audio decode thread writes into it and the audio sink callback reads
+ * from it. Reading never blocks or takes a lock: the callback copies what
+ * is there and posts a semaphore when the writer is parked on a full ring.
+ *
+ * A flush (after a seek) is requested by the writer and applied by the
+ * reader on its next read, so the read index keeps a single writer.
+ */
+typedef struct PcmRing {
+  uint8_t *data;
+  unsigned int capacity; /* bytes, power of two */
+  SDL_sem *space_sem;
+  SDL_atomic_t abort_request;
+
+  /* written by the producer */
+  SDL_atomic_t windex;
+  SDL_atomic_t flush_index;
+  SDL_atomic_t flush_serial;
+  SDL_atomic_t writer_waiting;
+
+  /* written by the consumer */
+  SDL_atomic_t rindex;
+  int flush_seen;
+} PcmRing;
+
+int pcm_ring_init(PcmRing *r, unsigned int min_bytes);
+void pcm_ring_destroy(PcmRing *r);
+int pcm_ring_write(PcmRing *r, const uint8_t *buf, int len);
+int pcm_ring_read(PcmRing *r, uint8_t *buf, int len);
+void pcm_ring_flush(PcmRing *r);
+void pcm_ring_abort(PcmRing *r);
+int pcm_ring_count(PcmRing *r);
+
+#endif /* PCM_RING_H_ */
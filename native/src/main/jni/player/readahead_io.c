@@ -0,0 +1,277 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdio.h>
+#include <string.h>
+
+#include <libavutil/common.h>
+#include <libavutil/error.h>
+#include <libavutil/mem.h>
+
+#include <io_utils.h>
+#include <readahead_io.h>
+
+/* how often a waiting demuxer checks its interrupt callback, in milliseconds */
+#define READAHEAD_WAIT_MS 10
+
+/* drops what is more than the back buffer behind the demuxer, called locked */
+static void trim(ReadAhead *r) {
+  int64_t keep = r->read_pos - r->capacity / READAHEAD_BACK_FRACTION;
+
+  if (r->base_pos < keep) {
+    r->base_pos = keep;
+  }
+}
+
+static void *readahead_thread(void *arg) {
+  ReadAhead *r = arg;
+  int64_t pos, space, ret;
+  int serial, offset, len, n;
+
+  SDL_LockMutex(r->mutex);
+  while (!r->abort) {
+    if (r->done_serial != r->seek_serial) {
+      serial = r->seek_serial;
+      pos = r->seek_pos;
+      r->io_serial = serial;
+      SDL_UnlockMutex(r->mutex);
+      io_clear_interrupt(r->upstream);
+      ret = avio_seek(r->upstream, pos, SEEK_SET);
+      SDL_LockMutex(r->mutex);
+      if (serial == r->seek_serial) {
+        r->done_serial = serial;
+        r->error = ret < 0 ? (int) ret : 0;
+        r->eof = 0;
+        r->filling = 0;
+        SDL_CondBroadcast(r->cond);
+      }
+      continue;
+    }
+
+    trim(r);
+    space = r->capacity - (r->write_pos - r->base_pos);
+    if (r->eof || r->error || space == 0 || r->write_pos >= r->size) {
+      r->filling = 0;
+      SDL_CondWait(r->cond, r->mutex);
+      continue;
+    }
+    if (r->burst && !r->filling) {
+      if (r->write_pos - r->read_pos > r->capacity / READAHEAD_BURST_LOW_FRACTION) {
+        SDL_CondWait(r->cond, r->mutex);
+        continue;
+      }
+      r->bursts++;
+    }
+    r->filling = 1;
+
+    /* the free part of the ring is the thread's, the demuxer never reads there */
+    offset = (int) (r->write_pos % r->capacity);
+    len = (int) FFMIN3(space, r->capacity - offset, READAHEAD_CHUNK_SIZE);
+    serial = r->seek_serial;
+    r->io_serial = serial;
+    SDL_UnlockMutex(r->mutex);
+    n = avio_read_partial(r->upstream, r->buf + offset, len);
+    SDL_LockMutex(r->mutex);
+
+    if (serial != r->seek_serial) {
+      /* read for a position the demuxer left */
+      continue;
+    }
+    if (n > 0) {
+      r->write_pos += n;
+    } else if (n == 0 || n == AVERROR_EOF) {
+      r->eof = 1;
+    } else {
+      r->error = n;
+    }
+    SDL_CondBroadcast(r->cond);
+  }
+  SDL_UnlockMutex(r->mutex);
+  return NULL;
+}
+
+static int read_packet(void *opaque, uint8_t *buf, int size) {
+  ReadAhead *r = opaque;
+  int64_t available;
+  int offset, n, ret, waited = 0;
+
+  SDL_LockMutex(r->mutex);
+  for (;;) {
+    available = r->write_pos - r->read_pos;
+    if (available > 0 && r->done_serial == r->seek_serial) {
+      break;
+    }
+    if (r->done_serial == r->seek_serial && (r->eof || r->error ||
+        r->read_pos >= r->size)) {
+      ret = r->error ? r->error : AVERROR_EOF;
+      SDL_UnlockMutex(r->mutex);
+      return ret;
+    }
+    if (r->interrupt.callback && r->interrupt.callback(r->interrupt.opaque)) {
+      SDL_UnlockMutex(r->mutex);
+      return AVERROR_EXIT;
+    }
+    if (!waited) {
+      r->stalls++;
+      waited = 1;
+    }
+    SDL_CondWaitTimeout(r->cond, r->mutex, READAHEAD_WAIT_MS);
+  }
+
+  offset = (int) (r->read_pos % r->capacity);
+  n = (int) FFMIN3(available, size, r->capacity - offset);
+  memcpy(buf, r->buf + offset, n);
+  r->read_pos += n;
+  /* room for the thread, or the end of an idle period */
+  SDL_CondBroadcast(r->cond);
+  SDL_UnlockMutex(r->mutex);
+  return n;
+}
+
+static int64_t seek_packet(void *opaque, int64_t offset, int whence) {
+  ReadAhead *r = opaque;
+  int64_t pos;
+
+  switch (whence & ~AVSEEK_FORCE) {
+  case AVSEEK_SIZE:
+    return r->size;
+  case SEEK_SET:
+    pos = offset;
+    break;
+  case SEEK_CUR:
+    pos = r->read_pos + offset;
+    break;
+  case SEEK_END:
+    pos = r->size + offset;
+    break;
+  default:
+    return AVERROR(EINVAL);
+  }
+  if (pos < 0) {
+    return AVERROR(EINVAL);
+  }
+
+  SDL_LockMutex(r->mutex);
+  if (pos < r->base_pos || pos > r->write_pos || r->done_serial != r->seek_serial) {
+    /* not in the ring, start over there */
+    r->base_pos = r->read_pos = r->write_pos = pos;
+    r->seek_pos = pos;
+    r->seek_serial++;
+  } else {
+    r->read_pos = pos;
+  }
+  SDL_CondBroadcast(r->cond);
+  SDL_UnlockMutex(r->mutex);
+  return pos;
+}
+
+int readahead_open(ReadAhead **pr, AVIOContext *upstream, int capacity, int burst,
+    const AVIOInterruptCB *interrupt) {
+  ReadAhead *r;
+  uint8_t *buffer;
+  int64_t size = avio_size(upstream);
+
+  if (size <= 0 || !(upstream->seekable & AVIO_SEEKABLE_NORMAL)) {
+    return AVERROR(ENOSYS);
+  }
+
+  r = av_mallocz(sizeof(ReadAhead));
+  if (!r) {
+    return AVERROR(ENOMEM);
+  }
+  r->upstream = upstream;
+  r->interrupt = *interrupt;
+  r->capacity = capacity;
+  r->burst = burst;
+  r->size = size;
+  r->base_pos = r->read_pos = r->write_pos = avio_tell(upstream);
+  r->buf = av_malloc(capacity);
+  r->mutex = SDL_CreateMutex();
+  r->cond = SDL_CreateCond();
+  buffer = av_malloc(READAHEAD_IO_BUFFER_SIZE);
+  if (buffer) {
+    r->pb = avio_alloc_context(buffer, READAHEAD_IO_BUFFER_SIZE, 0, r, read_packet, NULL, seek_packet);
+  }
+  if (!r->buf || !r->mutex || !r->cond || !r->pb ||
+      pthread_create(&r->thread, NULL, readahead_thread, r) != 0) {
+    if (r->pb) {
+      av_freep(&r->pb->buffer);
+      avio_context_free(&r->pb);
+    } else {
+      av_free(buffer);
+    }
+    if (r->mutex) {
+      SDL_DestroyMutex(r->mutex);
+    }
+    if (r->cond) {
+      SDL_DestroyCond(r->cond);
+    }
+    av_free(r->buf);
+    av_free(r);
+    return AVERROR(ENOMEM);
+  }
+  r->pb->seekable = AVIO_SEEKABLE_NORMAL;
+
+  *pr = r;
+  return 0;
+}
+
+/* stops the thread, upstream is left to the caller */
+void readahead_close(ReadAhead **pr) {
+  ReadAhead *r = *pr;
+
+  if (!r) {
+    return;
+  }
+
+  SDL_LockMutex(r->mutex);
+  r->abort = 1;
+  SDL_CondBroadcast(r->cond);
+  SDL_UnlockMutex(r->mutex);
+  pthread_join(r->thread, NULL);
+
+  av_freep(&r->pb->buffer);
+  avio_context_free(&r->pb);
+  SDL_DestroyMutex(r->mutex);
+  SDL_DestroyCond(r->cond);
+  av_free(r->buf);
+  av_free(r);
+  *pr = NULL;
+}
+
+/*
+ * For the interrupt callback of upstream: a read for a position the
+ * demuxer left, or of a closing ring, is given up.
+ */
+int readahead_interrupted(ReadAhead *r) {
+  int interrupted;
+
+  SDL_LockMutex(r->mutex);
+  interrupted = r->abort || r->io_serial != r->seek_serial;
+  SDL_UnlockMutex(r->mutex);
+  return interrupted;
+}
+
+int readahead_buffered(ReadAhead *r) {
+  int64_t buffered;
+
+  SDL_LockMutex(r->mutex);
+  buffered = r->write_pos - r->read_pos;
+  SDL_UnlockMutex(r->mutex);
+  return (int) buffered;
+}
@@ -0,0 +1,87 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef READAHEAD_IO_H_
+#define READAHEAD_IO_H_
+
+#include <pthread.h>
+#include <stdint.h>
+
+#include <SDL.h>
+#include <SDL_mutex.h>
+
+#include <libavformat/avio.h>
+
+#define READAHEAD_IO_BUFFER_SIZE 32768
+/* largest single read from upstream */
+#define READAHEAD_CHUNK_SIZE 65536
+/* part of the ring kept behind the demuxer for short seeks back */
+#define READAHEAD_BACK_FRACTION 8
+/* in burst mode a burst starts once the ring is down to this fraction */
+#define READAHEAD_BURST_LOW_FRACTION 4
+
+/*
+ * Byte ring between the source and the demuxer.
+ *
+ * A thread of its own reads upstream into the ring and the demuxer reads
+ * pb, a custom AVIOContext, out of it, so a slow network read no longer
+ * holds up packets that are already there, and a full packet queue no
+ * longer stops the download. Seeks within what the ring holds, including
+ * a part behind the demuxer, cost nothing, others reset it and the thread
+ * seeks upstream.
+ *
+ * Continuous mode tops the ring up whenever there is room. Burst mode
+ * fills it, then leaves the connection idle until the demuxer has used
+ * all but a fraction of it, so the radio can sleep between bursts.
+ *
+ * Only sources of known size that can seek are read ahead: a live stream
+ * arrives in real time whatever the depth.
+ */
+typedef struct ReadAhead {
+  AVIOContext *pb;
+  AVIOContext *upstream;
+  AVIOInterruptCB interrupt; /* checked while the demuxer waits */
+  pthread_t thread;
+  SDL_mutex *mutex;
+  SDL_cond *cond;
+  uint8_t *buf;
+  int capacity;
+  int burst;
+  int64_t size;
+  int64_t base_pos; /* oldest byte still in the ring */
+  int64_t read_pos; /* next byte for the demuxer */
+  int64_t write_pos; /* end of the data in the ring */
+  int64_t seek_pos;
+  int seek_serial; /* bumped by a seek that resets the ring */
+  int done_serial; /* last seek_serial the thread applied upstream */
+  int io_serial; /* seek_serial when the upstream call in progress started */
+  int filling; /* burst mode: a burst is in progress */
+  int eof;
+  int error;
+  int abort;
+  int stalls; /* reads that had to wait for the network */
+  int bursts;
+} ReadAhead;
+
+int readahead_open(ReadAhead **pr, AVIOContext *upstream, int capacity, int burst,
+    const AVIOInterruptCB *interrupt);
+void readahead_close(ReadAhead **pr);
+int readahead_interrupted(ReadAhead *r);
+int readahead_buffered(ReadAhead *r);
+
+#endif /* READAHEAD_IO_H_ */
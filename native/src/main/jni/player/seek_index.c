@@ -0,0 +1,193 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdio.h>
+#include <string.h>
+
+#include <libavutil/avstring.h>
+#include <libavutil/mem.h>
+
+#include <seek_index.h>
+
+/* header of the cache file, followed by the URL and nb_entries SeekIndexEntry records */
+#define SEEK_INDEX_MAGIC MKTAG('F', 'M', 'S', 'I')
+#define SEEK_INDEX_VERSION 1
+
+typedef struct SeekIndexHeader {
+  uint32_t magic;
+  uint32_t version;
+  int64_t size;
+  int64_t mtime;
+  int32_t stream_index;
+  int32_t time_base_num;
+  int32_t time_base_den;
+  int32_t complete;
+  int32_t url_length;
+  int32_t nb_entries;
+} SeekIndexHeader;
+
+static int reserve(SeekIndex *idx, int count) {
+  return cache_file_grow((void **) &idx->entries, &idx->capacity, count, 256,
+      sizeof(SeekIndexEntry));
+}
+
+/* reads the cache file, leaves the index empty if it belongs to another source */
+static void load(SeekIndex *idx) {
+  SeekIndexHeader header;
+  FILE *f;
+
+  f = fopen(idx->path, "rb");
+  if (!f) {
+    return;
+  }
+
+  if (fread(&header, sizeof(header), 1, f) != 1 ||
+      header.magic != SEEK_INDEX_MAGIC ||
+      header.version != SEEK_INDEX_VERSION ||
+      header.size != idx->size ||
+      header.mtime != idx->mtime ||
+      header.stream_index != idx->stream_index ||
+      header.time_base_num != idx->time_base.num ||
+      header.time_base_den != idx->time_base.den ||
+      header.nb_entries < 0 ||
+      reserve(idx, header.nb_entries) < 0 ||
+      cache_file_read(f, idx->url, header.url_length, idx->entries, header.nb_entries,
+          sizeof(SeekIndexEntry)) < 0) {
+    fclose(f);
+    return;
+  }
+  fclose(f);
+
+  idx->nb_entries = header.nb_entries;
+  idx->complete = header.complete;
+  /* recording resumes once playback gets to the end of what is known */
+  if (idx->nb_entries > 0) {
+    idx->covered = idx->entries[idx->nb_entries - 1].timestamp;
+  }
+}
+
+int seek_index_open(SeekIndex *idx, const char *dir, const char *url, int64_t size,
+    int64_t mtime, AVStream *st, int64_t min_interval_us) {
+  memset(idx, 0, sizeof(SeekIndex));
+
+  if (strlen(url) >= sizeof(idx->url)) {
+    return -1;
+  }
+  av_strlcpy(idx->url, url, sizeof(idx->url));
+  idx->size = size;
+  idx->mtime = mtime;
+  idx->stream_index = st->index;
+  idx->time_base = st->time_base;
+  idx->min_interval = av_rescale_q(min_interval_us, AV_TIME_BASE_Q, st->time_base);
+  idx->max_gap = av_rescale_q(SEEK_INDEX_MAX_GAP, AV_TIME_BASE_Q, st->time_base);
+  idx->covered = AV_NOPTS_VALUE;
+
+  /* a source that could change without its size changing is not saved */
+  if (dir && dir[0] && size > 0) {
+    snprintf(idx->path, sizeof(idx->path), "%s/%016llx.idx", dir,
+        (unsigned long long) cache_file_hash(url));
+    load(idx);
+  }
+  return 0;
+}
+
+void seek_index_close(SeekIndex *idx) {
+  av_freep(&idx->entries);
+  idx->nb_entries = 0;
+  idx->capacity = 0;
+}
+
+/*
+ * Called for every packet of the indexed stream. Only packets that carry
+ * on from the covered range extend it: after a seek ahead of it nothing
+ * is recorded, after a seek back recording resumes where the range ends.
+ */
+void seek_index_add(SeekIndex *idx, AVPacket *pkt) {
+  int64_t ts = pkt->dts != AV_NOPTS_VALUE ? pkt->dts : pkt->pts;
+  SeekIndexEntry *last;
+
+  if (idx->complete || ts == AV_NOPTS_VALUE) {
+    return;
+  }
+
+  idx->in_range = idx->covered == AV_NOPTS_VALUE ||
+      (ts >= idx->covered && ts <= idx->covered + idx->max_gap);
+  if (!idx->in_range) {
+    return;
+  }
+  idx->covered = ts;
+
+  if (!(pkt->flags & AV_PKT_FLAG_KEY) || pkt->pos < 0) {
+    return;
+  }
+  last = idx->nb_entries > 0 ? &idx->entries[idx->nb_entries - 1] : NULL;
+  if (last && ts < last->timestamp + idx->min_interval) {
+    return;
+  }
+  if (reserve(idx, idx->nb_entries + 1) < 0) {
+    return;
+  }
+  idx->entries[idx->nb_entries].timestamp = ts;
+  idx->entries[idx->nb_entries].pos = pkt->pos;
+  idx->nb_entries++;
+  idx->dirty = 1;
+}
+
+/* called at the end of the source */
+void seek_index_finish(SeekIndex *idx) {
+  if (!idx->complete && idx->in_range && idx->nb_entries > 0) {
+    idx->complete = 1;
+    idx->dirty = 1;
+  }
+}
+
+void seek_index_apply(SeekIndex *idx, AVStream *st) {
+  int i;
+
+  for (i = 0; i < idx->nb_entries; i++) {
+    av_add_index_entry(st, idx->entries[i].pos, idx->entries[i].timestamp,
+        0, 0, AVINDEX_KEYFRAME);
+  }
+}
+
+int seek_index_save(SeekIndex *idx) {
+  SeekIndexHeader header;
+
+  if (!idx->path[0] || !idx->dirty || idx->nb_entries == 0) {
+    return 0;
+  }
+
+  memset(&header, 0, sizeof(header));
+  header.magic = SEEK_INDEX_MAGIC;
+  header.version = SEEK_INDEX_VERSION;
+  header.size = idx->size;
+  header.mtime = idx->mtime;
+  header.stream_index = idx->stream_index;
+  header.time_base_num = idx->time_base.num;
+  header.time_base_den = idx->time_base.den;
+  header.complete = idx->complete;
+  header.url_length = strlen(idx->url);
+  header.nb_entries = idx->nb_entries;
+
+  if (cache_file_write(idx->path, &header, sizeof(header), idx->url, idx->entries,
+      idx->nb_entries, sizeof(SeekIndexEntry)) < 0) {
+    return -1;
+  }
+  idx->dirty = 0;
+  return 0;
+}
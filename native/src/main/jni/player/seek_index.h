@@ -0,0 +1,76 @@
+/*
+ * FFmpegMediaPlayer: A unified interface for playing audio files and streams.
+ *
+ * Copyright 2016 William Seemann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef SEEK_INDEX_H_
+#define SEEK_INDEX_H_
+
+#include <stdint.h>
+
+#include <libavformat/avformat.h>
+
+#include <cache_file.h>
+
+#define SEEK_INDEX_MAX_PATH CACHE_FILE_MAX_PATH
+/* packets further apart than this, in microseconds, mean playback jumped */
+#define SEEK_INDEX_MAX_GAP 2000000
+
+typedef struct SeekIndexEntry {
+  int64_t timestamp; /* dts, in the time base of the indexed stream */
+  int64_t pos; /* byte offset of the packet */
+} SeekIndexEntry;
+
+/*
+ * Key frame positions of one stream, for sources whose demuxer has no
+ * index of its own (raw MP3 and AAC, MPEG-TS, files without cues).
+ *
+ * The read thread records the packets it demuxes while playback runs
+ * forward from a covered position, so the first full play of a source
+ * indexes all of it. The entries go into the demuxer's own index with
+ * av_add_index_entry(), where avformat_seek_file() finds them.
+ *
+ * With a cache directory the index is saved there, keyed by the URL and
+ * checked against the size and modification time of the source, and
+ * loaded again the next time the source is opened.
+ */
+typedef struct SeekIndex {
+  SeekIndexEntry *entries;
+  int nb_entries;
+  int capacity;
+  int stream_index;
+  AVRational time_base;
+  int64_t min_interval; /* between entries, in time_base */
+  int64_t max_gap; /* between packets that still count as contiguous, in time_base */
+  int64_t covered; /* last timestamp of the contiguous range, AV_NOPTS_VALUE for none */
+  int in_range; /* the last packet continued the contiguous range */
+  int complete; /* the entries cover the source to its end */
+  int dirty; /* changed since it was loaded */
+  int64_t size;
+  int64_t mtime;
+  char url[SEEK_INDEX_MAX_PATH];
+  char path[SEEK_INDEX_MAX_PATH]; /* cache file, empty when not saved */
+} SeekIndex;
+
+int seek_index_open(SeekIndex *idx, const char *dir, const char *url, int64_t size,
+    int64_t mtime, AVStream *st, int64_t min_interval_us);
+void seek_index_close(SeekIndex *idx);
+void seek_index_add(SeekIndex *idx, AVPacket *pkt);
+void seek_index_finish(SeekIndex *idx);
+void seek_index_apply(SeekIndex *idx, AVStream *st);
+int seek_index_save(SeekIndex *idx);
+
+#endif /* SEEK_INDEX_H_ */
@@ -23,16 +23,33 @@ const int TARGET_IMAGE_CODEC = AV_CODEC_ID_PNG;
 
 void createVideoEngine(VideoPlayer **ps) {
 	VideoPlayer *is = *ps;
+	is->native_window = NULL;
+	is->window_width = 0;
+	is->window_height = 0;
 }
 
 void createScreen(VideoPlayer **ps, void *surface, int width, int height) {
 	VideoPlayer *is = *ps;
 	is->native_window = surface;
+	is->window_width = 0;
+	is->window_height = 0;
 }
 
 void setSurface(VideoPlayer **ps, void *surface) {
 	VideoPlayer *is = *ps;
 	is->native_window = surface;
+	is->window_width = 0;
+	is->window_height = 0;
+}
+
+// the window reallocates its buffers on a geometry change, so only
+// set it when the video size actually changed
+static void setGeometry(VideoPlayer *is, int width, int height) {
+	if (is->window_width != width || is->window_height != height) {
+		ANativeWindow_setBuffersGeometry(is->native_window, width, height, WINDOW_FORMAT_RGBA_8888);
+		is->window_width = width;
+		is->window_height = height;
+	}
 }
 
 struct SwsContext *createScaler(VideoPlayer **ps, AVCodecContext *codec) {
@@ -55,7 +72,23 @@ struct SwsContext *createScaler(VideoPlayer **ps, AVCodecContext *codec) {
 void *createBmp(VideoPlayer **ps, int width, int height) {
 	VideoPlayer *is = *ps;
 
-	return malloc(sizeof(Picture));
+	Picture *picture = malloc(sizeof(Picture));
+
+	if (!picture) {
+		return NULL;
+	}
+
+	// the RGBA buffer lives as long as the picture, updateBmp() only
+	// converts into it
+	picture->linesize = FFALIGN(width * 4, 64);
+	picture->buffer = av_malloc(picture->linesize * height);
+
+	if (!picture->buffer) {
+		free(picture);
+		return NULL;
+	}
+
+	return picture;
 }
 
 void destroyBmp(VideoPlayer **ps, void *bmp) {
@@ -63,8 +96,7 @@ void destroyBmp(VideoPlayer **ps, void *bmp) {
 
 	if (picture) {
 		if (picture->buffer) {
-			free(picture->buffer);
-			picture->buffer = NULL;
+			av_freep(&picture->buffer);
 		}
 
 		free(picture);
@@ -77,9 +109,8 @@ void updateBmp(VideoPlayer **ps, struct SwsContext *sws_ctx, AVCodecContext *pCo
     
     Picture *picture = (Picture *) bmp;
     
-    AVFrame *frame;
-    
-    int got_packet_ptr = 0;
+    uint8_t *dst_data[4] = { picture->buffer, NULL, NULL, NULL };
+    int dst_linesize[4] = { picture->linesize, 0, 0, 0 };
     
     if (width == -1) {
         width = pCodecCtx->width;
@@ -89,41 +120,13 @@ void updateBmp(VideoPlayer **ps, struct SwsContext *sws_ctx, AVCodecContext *pCo
         height = pCodecCtx->height;
     }
     
-    frame = av_frame_alloc();
-    
-    if (!frame) {
-        goto fail;
-    }
-    
-    // Determine required buffer size and allocate buffer
-    int numBytes = avpicture_get_size(TARGET_IMAGE_FORMAT, width, height);
-    picture->buffer = (uint8_t *) av_malloc(numBytes * sizeof(uint8_t));
-    
-    // set the frame parameters
-    frame->format = TARGET_IMAGE_FORMAT;
-    frame->width = width;
-    frame->height = height;
-    
-    avpicture_fill(((AVPicture *)frame),
-                   picture->buffer,
-                   TARGET_IMAGE_FORMAT,
-                   width,
-                   height);
-    
     sws_scale(sws_ctx,
               (const uint8_t * const *) pFrame->data,
               pFrame->linesize,
               0,
               height,
-              frame->data,
-              frame->linesize);
-    
-    
-    picture->linesize = frame->linesize[0];
-    
-    // TODO is this right?
-    fail:
-    av_free(frame);
+              dst_data,
+              dst_linesize);
 }
 
 void displayBmp(VideoPlayer **ps, void *bmp, AVCodecContext *pCodecCtx, int width, int height) {
@@ -140,7 +143,7 @@ void displayBmp(VideoPlayer **ps, void *bmp, AVCodecContext *pCodecCtx, int widt
 	}
 
 	if (is->native_window) {
-		ANativeWindow_setBuffersGeometry(is->native_window, width, height, WINDOW_FORMAT_RGBA_8888);
+		setGeometry(is, width, height);
 
 		ANativeWindow_Buffer windowBuffer;
 
@@ -158,6 +161,31 @@ void displayBmp(VideoPlayer **ps, void *bmp, AVCodecContext *pCodecCtx, int widt
 	}
 }
 
+void displayFrame(VideoPlayer **ps, struct SwsContext *sws_ctx, AVFrame *pFrame, int width, int height) {
+	VideoPlayer *is = *ps;
+
+	if (is->native_window) {
+		setGeometry(is, width, height);
+
+		ANativeWindow_Buffer windowBuffer;
+
+		if (ANativeWindow_lock(is->native_window, &windowBuffer, NULL) == 0) {
+			uint8_t *dst_data[4] = { windowBuffer.bits, NULL, NULL, NULL };
+			int dst_linesize[4] = { windowBuffer.stride * 4, 0, 0, 0 };
+
+			sws_scale(sws_ctx,
+					(const uint8_t * const *) pFrame->data,
+					pFrame->linesize,
+					0,
+					height,
+					dst_data,
+					dst_linesize);
+
+			ANativeWindow_unlockAndPost(is->native_window);
+		}
+	}
+}
+
 void shutdownVideoEngine(VideoPlayer **ps) {
 
 }
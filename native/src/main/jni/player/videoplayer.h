@@ -31,6 +31,9 @@
 
 typedef struct VideoPlayer {
 	ANativeWindow* native_window;
+	// geometry last set on native_window, 0 if not set yet
+	int window_width;
+	int window_height;
 } VideoPlayer;
 
 void createVideoEngine(VideoPlayer **ps);
@@ -41,6 +44,7 @@ void *createBmp(VideoPlayer **ps, int width, int height);
 void destroyBmp(VideoPlayer **ps, void *bmp);
 void updateBmp(VideoPlayer **ps, struct SwsContext *sws_ctx, AVCodecContext *pCodecCtx, void *bmp, AVFrame *pFrame, int width, int height);
 void displayBmp(VideoPlayer **ps, void *bmp, AVCodecContext *pCodecCtx, int width, int height);
+void displayFrame(VideoPlayer **ps, struct SwsContext *sws_ctx, AVFrame *pFrame, int width, int height);
 void shutdownVideoEngine(VideoPlayer **ps);
 
 #endif /* VIDEOPLAYER_H_ */
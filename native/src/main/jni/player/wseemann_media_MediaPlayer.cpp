@@ -46,6 +46,12 @@ struct fields_t {
     jfieldID    surface_texture;
     
     jmethodID   post_event;
+
+    jmethodID   parcel_set_data_position;
+    jmethodID   parcel_read_int;
+    jmethodID   parcel_write_int;
+    jmethodID   parcel_read_string;
+    jmethodID   parcel_write_string;
 };
 static fields_t fields;
 
@@ -480,6 +486,18 @@ wseemann_media_FFmpegMediaPlayer_seekTo(JNIEnv *env, jobject thiz, int msec)
     process_media_player_call( env, thiz, mp->seekTo(msec), NULL, NULL );
 }
 
+static void
+wseemann_media_FFmpegMediaPlayer_seekToMode(JNIEnv *env, jobject thiz, int msec, int mode)
+{
+    MediaPlayer* mp = getMediaPlayer(env, thiz);
+    if (mp == NULL ) {
+        jniThrowException(env, "java/lang/IllegalStateException", NULL);
+        return;
+    }
+    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "seekTo: %d(msec), mode=%d", msec, mode);
+    process_media_player_call( env, thiz, mp->seekTo(msec, mode), NULL, NULL );
+}
+
 static int
 wseemann_media_FFmpegMediaPlayer_getVideoWidth(JNIEnv *env, jobject thiz)
 {
@@ -680,6 +698,79 @@ wseemann_media_FFmpegMediaPlayer_getMetadata(JNIEnv *env, jobject thiz, jboolean
     }
 }
 
+static jboolean
+wseemann_media_FFmpegMediaPlayer_setParameter(JNIEnv *env, jobject thiz, jint key, jobject java_request)
+{
+    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "setParameter: key %d", key);
+    MediaPlayer* mp = getMediaPlayer(env, thiz);
+    if (mp == NULL ) {
+        jniThrowException(env, "java/lang/IllegalStateException", NULL);
+        return JNI_FALSE;
+    }
+    
+    // the value was just written, read it back from the start of the parcel
+    env->CallVoidMethod(java_request, fields.parcel_set_data_position, 0);
+
+    if (isStringParameter(key)) {
+        jstring jValue = (jstring) env->CallObjectMethod(java_request, fields.parcel_read_string);
+        if (env->ExceptionCheck()) {
+            return JNI_FALSE;
+        }
+
+        // a null string clears the parameter
+        const char *value = jValue ? env->GetStringUTFChars(jValue, NULL) : NULL;
+        status_t ret = mp->setParameter(key, value);
+        if (jValue) {
+            env->ReleaseStringUTFChars(jValue, value);
+            env->DeleteLocalRef(jValue);
+        }
+        return ret == OK ? JNI_TRUE : JNI_FALSE;
+    }
+
+    jint value = env->CallIntMethod(java_request, fields.parcel_read_int);
+    if (env->ExceptionCheck()) {
+        return JNI_FALSE;
+    }
+    
+    return mp->setParameter(key, value) == OK ? JNI_TRUE : JNI_FALSE;
+}
+
+static void
+wseemann_media_FFmpegMediaPlayer_getParameter(JNIEnv *env, jobject thiz, jint key, jobject java_reply)
+{
+    __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, "getParameter: key %d", key);
+    MediaPlayer* mp = getMediaPlayer(env, thiz);
+    if (mp == NULL ) {
+        jniThrowException(env, "java/lang/IllegalStateException", NULL);
+        return;
+    }
+    
+    if (isStringParameter(key)) {
+        const char *value = NULL;
+        if (mp->getParameter(key, &value) != OK) {
+            jniThrowException(env, "java/lang/IllegalArgumentException", "Unsupported parameter key");
+            return;
+        }
+
+        jstring jValue = env->NewStringUTF(value);
+        env->CallVoidMethod(java_reply, fields.parcel_write_string, jValue);
+        env->DeleteLocalRef(jValue);
+        env->CallVoidMethod(java_reply, fields.parcel_set_data_position, 0);
+        return;
+    }
+
+    int value = 0;
+    status_t ret = mp->getParameter(key, &value);
+    if (ret != OK) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "Unsupported parameter key");
+        return;
+    }
+    
+    // rewind so the caller can read the value right away
+    env->CallVoidMethod(java_reply, fields.parcel_write_int, value);
+    env->CallVoidMethod(java_reply, fields.parcel_set_data_position, 0);
+}
+
 // This function gets some field IDs, which in turn causes class initialization.
 // It is called from a static block in MediaPlayer, which won't run until the
 // first time an instance of this class is used.
@@ -710,6 +801,24 @@ wseemann_media_FFmpegMediaPlayer_native_init(JNIEnv *env)
         return;
     }
     
+    clazz = env->FindClass("android/os/Parcel");
+    if (clazz == NULL) {
+        return;
+    }
+    
+    fields.parcel_set_data_position = env->GetMethodID(clazz, "setDataPosition", "(I)V");
+    fields.parcel_read_int = env->GetMethodID(clazz, "readInt", "()I");
+    fields.parcel_write_int = env->GetMethodID(clazz, "writeInt", "(I)V");
+    fields.parcel_read_string = env->GetMethodID(clazz, "readString", "()Ljava/lang/String;");
+    fields.parcel_write_string = env->GetMethodID(clazz, "writeString", "(Ljava/lang/String;)V");
+    if (fields.parcel_set_data_position == NULL ||
+        fields.parcel_read_int == NULL ||
+        fields.parcel_write_int == NULL ||
+        fields.parcel_read_string == NULL ||
+        fields.parcel_write_string == NULL) {
+        return;
+    }
+    
     // Initialize libavformat and register all the muxers, demuxers and protocols.
     av_register_all();
     avformat_network_init();
@@ -850,6 +959,7 @@ static JNINativeMethod gMethods[] = {
     {"getVideoWidth",       "()I",                              (void *)wseemann_media_FFmpegMediaPlayer_getVideoWidth},
     {"getVideoHeight",      "()I",                              (void *)wseemann_media_FFmpegMediaPlayer_getVideoHeight},
     {"seekTo",              "(I)V",                             (void *)wseemann_media_FFmpegMediaPlayer_seekTo},
+    {"_seekTo",             "(II)V",                            (void *)wseemann_media_FFmpegMediaPlayer_seekToMode},
     {"_pause",              "()V",                              (void *)wseemann_media_FFmpegMediaPlayer_pause},
     {"isPlaying",           "()Z",                              (void *)wseemann_media_FFmpegMediaPlayer_isPlaying},
     {"getCurrentPosition",  "()I",                              (void *)wseemann_media_FFmpegMediaPlayer_getCurrentPosition},
@@ -870,6 +980,8 @@ static JNINativeMethod gMethods[] = {
     {"setAuxEffectSendLevel", "(F)V",                           (void *)wseemann_media_FFmpegMediaPlayer_setAuxEffectSendLevel},
     {"attachAuxEffect",     "(I)V",                             (void *)wseemann_media_FFmpegMediaPlayer_attachAuxEffect},
     {"setNextMediaPlayer", "(Lwseemann/media/FFmpegMediaPlayer;)V", (void *)wseemann_media_FFmpegMediaPlayer_setNextMediaPlayer},
+    {"setParameter",        "(ILandroid/os/Parcel;)Z",          (void *)wseemann_media_FFmpegMediaPlayer_setParameter},
+    {"getParameter",        "(ILandroid/os/Parcel;)V",          (void *)wseemann_media_FFmpegMediaPlayer_getParameter},
 };
 
 static const char* const kClassPathName = "wseemann/media/FFmpegMediaPlayer";